@@ -4,6 +4,7 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.sunshine.grpc.example.helloworld.GreeterGrpc;
 import com.sunshine.grpc.example.helloworld.HelloReply;
 import com.sunshine.grpc.example.helloworld.HelloRequest;
+import com.sunshine.grpc.example.loadbalancing.leastrequest.LeastRequestLoadBalancerProvider;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.NameResolver;
@@ -33,7 +34,8 @@ public class MultiAddressLoadBalanceClient {
     public MultiAddressLoadBalanceClient() {
         channel = ManagedChannelBuilder.forTarget("server")
                                        .nameResolverFactory(new MultiAddressNameResolverFactory())
-                                       .defaultLoadBalancingPolicy("round_robin")
+                                       // least_request, 慢的后端不会再分到和其他后端一样多的请求
+                                       .defaultServiceConfig(LeastRequestLoadBalancerProvider.serviceConfig())
                                        .usePlaintext()
                                        .build();
         futureStub = GreeterGrpc.newFutureStub(channel);
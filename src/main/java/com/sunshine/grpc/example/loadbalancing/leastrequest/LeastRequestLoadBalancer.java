@@ -0,0 +1,276 @@
+package com.sunshine.grpc.example.loadbalancing.leastrequest;
+
+import com.sunshine.grpc.example.loadbalancing.zklb.ServerLoad;
+import io.grpc.Attributes;
+import io.grpc.ClientStreamTracer;
+import io.grpc.ConnectivityState;
+import io.grpc.ConnectivityStateInfo;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.Metadata;
+import io.grpc.Status;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.grpc.ConnectivityState.CONNECTING;
+import static io.grpc.ConnectivityState.IDLE;
+import static io.grpc.ConnectivityState.READY;
+import static io.grpc.ConnectivityState.SHUTDOWN;
+import static io.grpc.ConnectivityState.TRANSIENT_FAILURE;
+
+/**
+ * 每个地址一个subchannel, 连接管理和round_robin一样; 区别在picker: 随机选几个READY的subchannel, 取正在处理的请求最少的.
+ * <p>
+ * 每个subchannel的请求数是一个{@link AtomicInteger}, 选中时通过{@link ClientStreamTracer}在stream创建时加一、
+ * 结束时减一, picker在任意线程上并发调用也不需要加锁. 卡住的后端请求数会越积越多, 很快就不再被选中.
+ * <p>
+ * 地址上带有{@link ServerLoad}(zookeeper解析)时, 请求数按服务端的cpu数折算, 容量大的后端分到更多请求.
+ * 除picker外的方法都在channel的syncContext上调用.
+ *
+ * @author: hj
+ * @date: 26-10-19 下午9:15
+ */
+final class LeastRequestLoadBalancer extends LoadBalancer {
+    private static final Attributes.Key<Ref<ConnectivityStateInfo>> STATE_INFO = Attributes.Key.create("state-info");
+    private static final Attributes.Key<AtomicInteger> IN_FLIGHT = Attributes.Key.create("in-flight");
+    private static final Status EMPTY_OK = Status.OK.withDescription("no subchannels ready");
+
+    private final Helper helper;
+    // 去掉属性之后的地址 -> subchannel, 地址上的负载属性变化不会重建连接
+    private final Map<EquivalentAddressGroup, Subchannel> subchannels = new HashMap<>();
+    private int choiceCount = LeastRequestLoadBalancerProvider.DEFAULT_CHOICE_COUNT;
+    private ConnectivityState currentState;
+
+    LeastRequestLoadBalancer(Helper helper) {
+        this.helper = helper;
+    }
+
+    @Override
+    public void handleResolvedAddresses(ResolvedAddresses resolvedAddresses) {
+        Object config = resolvedAddresses.getLoadBalancingPolicyConfig();
+        if (config instanceof LeastRequestLoadBalancerProvider.LeastRequestConfig) {
+            choiceCount = ((LeastRequestLoadBalancerProvider.LeastRequestConfig) config).choiceCount;
+        }
+        Map<EquivalentAddressGroup, EquivalentAddressGroup> latest = new HashMap<>();
+        for (EquivalentAddressGroup server : resolvedAddresses.getAddresses()) {
+            latest.put(new EquivalentAddressGroup(server.getAddresses()), server);
+        }
+
+        List<Subchannel> removed = new ArrayList<>();
+        for (Map.Entry<EquivalentAddressGroup, Subchannel> entry : subchannels.entrySet()) {
+            if (!latest.containsKey(entry.getKey())) {
+                removed.add(entry.getValue());
+            }
+        }
+        subchannels.values().removeAll(removed);
+
+        for (Map.Entry<EquivalentAddressGroup, EquivalentAddressGroup> entry : latest.entrySet()) {
+            Subchannel existing = subchannels.get(entry.getKey());
+            if (existing != null) {
+                // 只更新地址属性(负载), 连接保持不变
+                existing.updateAddresses(Collections.singletonList(entry.getValue()));
+                continue;
+            }
+            Subchannel subchannel = helper.createSubchannel(CreateSubchannelArgs.newBuilder()
+                    .setAddresses(entry.getValue())
+                    .setAttributes(Attributes.newBuilder()
+                                             .set(STATE_INFO, new Ref<>(ConnectivityStateInfo.forNonError(IDLE)))
+                                             .set(IN_FLIGHT, new AtomicInteger())
+                                             .build())
+                    .build());
+            subchannel.start(state -> processSubchannelState(subchannel, state));
+            subchannels.put(entry.getKey(), subchannel);
+            subchannel.requestConnection();
+        }
+
+        updateBalancingState();
+        for (Subchannel subchannel : removed) {
+            shutdownSubchannel(subchannel);
+        }
+    }
+
+    @Override
+    public void handleNameResolutionError(Status error) {
+        if (currentState != READY) {
+            updateBalancingState(TRANSIENT_FAILURE, new EmptyPicker(error));
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        for (Subchannel subchannel : subchannels.values()) {
+            shutdownSubchannel(subchannel);
+        }
+        subchannels.clear();
+    }
+
+    private void processSubchannelState(Subchannel subchannel, ConnectivityStateInfo stateInfo) {
+        if (subchannels.get(new EquivalentAddressGroup(subchannel.getAddresses().getAddresses())) != subchannel) {
+            return;
+        }
+        if (stateInfo.getState() == TRANSIENT_FAILURE || stateInfo.getState() == IDLE) {
+            helper.refreshNameResolution();
+        }
+        if (stateInfo.getState() == IDLE) {
+            subchannel.requestConnection();
+        }
+        Ref<ConnectivityStateInfo> stateRef = subchannel.getAttributes().get(STATE_INFO);
+        if (stateRef.value.getState() == TRANSIENT_FAILURE
+                && (stateInfo.getState() == CONNECTING || stateInfo.getState() == IDLE)) {
+            // 和round_robin一样, 失败之后保持TRANSIENT_FAILURE直到重新READY
+            return;
+        }
+        stateRef.value = stateInfo;
+        updateBalancingState();
+    }
+
+    private void shutdownSubchannel(Subchannel subchannel) {
+        subchannel.shutdown();
+        subchannel.getAttributes().get(STATE_INFO).value = ConnectivityStateInfo.forNonError(SHUTDOWN);
+    }
+
+    private void updateBalancingState() {
+        List<Subchannel> ready = new ArrayList<>(subchannels.size());
+        boolean connecting = false;
+        Status aggregated = EMPTY_OK;
+        for (Subchannel subchannel : subchannels.values()) {
+            ConnectivityStateInfo stateInfo = subchannel.getAttributes().get(STATE_INFO).value;
+            if (stateInfo.getState() == READY) {
+                ready.add(subchannel);
+            } else if (stateInfo.getState() == CONNECTING || stateInfo.getState() == IDLE) {
+                connecting = true;
+            } else {
+                aggregated = stateInfo.getStatus();
+            }
+        }
+        if (!ready.isEmpty()) {
+            updateBalancingState(READY, new ReadyPicker(ready, choiceCount));
+        } else if (connecting) {
+            updateBalancingState(CONNECTING, new EmptyPicker(EMPTY_OK));
+        } else {
+            updateBalancingState(TRANSIENT_FAILURE, new EmptyPicker(aggregated));
+        }
+    }
+
+    private void updateBalancingState(ConnectivityState state, SubchannelPicker picker) {
+        currentState = state;
+        helper.updateBalancingState(state, picker);
+    }
+
+    /**
+     * 从READY的subchannel中随机选出choiceCount个不同的, 取折算后请求数最少的
+     */
+    static final class ReadyPicker extends SubchannelPicker {
+        private final Subchannel[] subchannels;
+        private final AtomicInteger[] inFlight;
+        // 服务端cpu数, 没有负载信息时为1
+        private final int[] weights;
+        private final int choiceCount;
+
+        ReadyPicker(List<Subchannel> ready, int choiceCount) {
+            int size = ready.size();
+            this.subchannels = ready.toArray(new Subchannel[0]);
+            this.inFlight = new AtomicInteger[size];
+            this.weights = new int[size];
+            this.choiceCount = Math.min(choiceCount, size);
+            for (int i = 0; i < size; i++) {
+                inFlight[i] = subchannels[i].getAttributes().get(IN_FLIGHT);
+                // 地址只能在syncContext上读取, 创建picker时就把权重取出来
+                ServerLoad load = subchannels[i].getAddresses().getAttributes().get(ServerLoad.ATTR_KEY);
+                weights[i] = load == null ? 1 : load.getCpus();
+            }
+        }
+
+        @Override
+        public PickResult pickSubchannel(PickSubchannelArgs args) {
+            int best = choose();
+            return PickResult.withSubchannel(subchannels[best], new InFlightTracerFactory(inFlight[best]));
+        }
+
+        private int choose() {
+            int size = subchannels.length;
+            if (size == 1) {
+                return 0;
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int[] chosen = new int[choiceCount];
+            int best = -1;
+            for (int c = 0; c < choiceCount; c++) {
+                int candidate = nextDistinct(random, size, chosen, c);
+                chosen[c] = candidate;
+                // 比较 inFlight/weight, 交叉相乘避免浮点
+                if (best < 0 || (long) inFlight[candidate].get() * weights[best]
+                        < (long) inFlight[best].get() * weights[candidate]) {
+                    best = candidate;
+                }
+            }
+            return best;
+        }
+
+        // choiceCount很小, 重复时重新随机即可
+        private static int nextDistinct(ThreadLocalRandom random, int size, int[] chosen, int count) {
+            while (true) {
+                int candidate = random.nextInt(size);
+                boolean duplicate = false;
+                for (int i = 0; i < count; i++) {
+                    if (chosen[i] == candidate) {
+                        duplicate = true;
+                        break;
+                    }
+                }
+                if (!duplicate) {
+                    return candidate;
+                }
+            }
+        }
+    }
+
+    /**
+     * stream创建时请求数加一, 结束时减一
+     */
+    private static final class InFlightTracerFactory extends ClientStreamTracer.Factory {
+        private final AtomicInteger inFlight;
+
+        InFlightTracerFactory(AtomicInteger inFlight) {
+            this.inFlight = inFlight;
+        }
+
+        @Override
+        public ClientStreamTracer newClientStreamTracer(ClientStreamTracer.StreamInfo info, Metadata headers) {
+            inFlight.incrementAndGet();
+            return new ClientStreamTracer() {
+                @Override
+                public void streamClosed(Status status) {
+                    inFlight.decrementAndGet();
+                }
+            };
+        }
+    }
+
+    private static final class EmptyPicker extends SubchannelPicker {
+        private final Status status;
+
+        EmptyPicker(Status status) {
+            this.status = status;
+        }
+
+        @Override
+        public PickResult pickSubchannel(PickSubchannelArgs args) {
+            return status.isOk() ? PickResult.withNoResult() : PickResult.withError(status);
+        }
+    }
+
+    private static final class Ref<T> {
+        T value;
+
+        Ref(T value) {
+            this.value = value;
+        }
+    }
+}
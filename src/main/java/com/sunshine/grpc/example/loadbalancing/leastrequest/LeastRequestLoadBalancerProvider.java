@@ -0,0 +1,102 @@
+package com.sunshine.grpc.example.loadbalancing.leastrequest;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import io.grpc.LoadBalancer;
+import io.grpc.LoadBalancerProvider;
+import io.grpc.NameResolver;
+import io.grpc.Status;
+
+import java.io.InputStreamReader;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * {@code least_request}策略: 每次从READY的subchannel中随机选{@code choiceCount}个(默认2个, 即power of two choices),
+ * 把请求发给正在处理的请求最少的那个. 通过{@code META-INF/services}注册, 在service config中选择:
+ * <pre>
+ * {"loadBalancingConfig": [{"least_request": {"choiceCount": 2}}]}
+ * </pre>
+ *
+ * @author: hj
+ * @date: 26-10-19 下午9:10
+ */
+public class LeastRequestLoadBalancerProvider extends LoadBalancerProvider {
+    public static final String POLICY_NAME = "least_request";
+
+    static final int DEFAULT_CHOICE_COUNT = 2;
+    // 选得越多越接近全局最少, 但每次选择的开销也越大
+    static final int MAX_CHOICE_COUNT = 10;
+
+    /**
+     * @return classpath中使用least_request策略的service config
+     */
+    public static Map<String, ?> serviceConfig() {
+        return new Gson().fromJson(
+                new JsonReader(
+                        new InputStreamReader(
+                                LeastRequestLoadBalancerProvider.class.getClassLoader()
+                                                                      .getResourceAsStream("least_request_service_config.json"),
+                                UTF_8)),
+                Map.class);
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public int getPriority() {
+        return 5;
+    }
+
+    @Override
+    public String getPolicyName() {
+        return POLICY_NAME;
+    }
+
+    @Override
+    public LoadBalancer newLoadBalancer(LoadBalancer.Helper helper) {
+        return new LeastRequestLoadBalancer(helper);
+    }
+
+    @Override
+    public NameResolver.ConfigOrError parseLoadBalancingPolicyConfig(Map<String, ?> rawConfig) {
+        Object choiceCount = rawConfig.get("choiceCount");
+        if (choiceCount == null) {
+            return NameResolver.ConfigOrError.fromConfig(new LeastRequestConfig(DEFAULT_CHOICE_COUNT));
+        }
+        // service config中的数字都被解析成Double
+        if (!(choiceCount instanceof Number) || ((Number) choiceCount).intValue() < 2
+                || ((Number) choiceCount).intValue() > MAX_CHOICE_COUNT) {
+            return NameResolver.ConfigOrError.fromError(Status.INVALID_ARGUMENT.withDescription(
+                    "choiceCount must be between 2 and " + MAX_CHOICE_COUNT + ", got " + choiceCount));
+        }
+        return NameResolver.ConfigOrError.fromConfig(new LeastRequestConfig(((Number) choiceCount).intValue()));
+    }
+
+    static final class LeastRequestConfig {
+        final int choiceCount;
+
+        LeastRequestConfig(int choiceCount) {
+            this.choiceCount = choiceCount;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof LeastRequestConfig && ((LeastRequestConfig) o).choiceCount == choiceCount;
+        }
+
+        @Override
+        public int hashCode() {
+            return choiceCount;
+        }
+
+        @Override
+        public String toString() {
+            return "LeastRequestConfig{choiceCount=" + choiceCount + '}';
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.sunshine.grpc.example.loadbalancing.zklb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 最近一次从zookeeper解析到的服务地址, 保存在本地文件中, 每行一个{@code host:port}.
+ * <p>
+ * 客户端启动时先用快照中的地址, 不需要等待zookeeper连接; zookeeper不可用期间也一直使用最后一次的地址.
+ * 写入先写临时文件再原子地rename, 进程在写入过程中退出也不会留下不完整的快照.
+ *
+ * @author: hj
+ * @date: 26-10-19 下午5:20
+ */
+class EndpointSnapshot {
+    private static final Logger logger = LoggerFactory.getLogger(EndpointSnapshot.class);
+
+    private final Path file;
+
+    EndpointSnapshot(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @return 快照中的地址, 快照不存在或者读取失败时返回空列表
+     */
+    List<String> load() {
+        try {
+            List<String> servers = new ArrayList<>();
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) {
+                    servers.add(line.trim());
+                }
+            }
+            return servers;
+        } catch (NoSuchFileException e) {
+            return Collections.emptyList();
+        } catch (IOException e) {
+            logger.warn("failed to read endpoint snapshot {}", file, e);
+            return Collections.emptyList();
+        }
+    }
+
+    void save(List<String> servers) {
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(tmp, servers, StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("failed to write endpoint snapshot {}", file, e);
+        }
+    }
+
+    Path getFile() {
+        return file;
+    }
+}
@@ -3,12 +3,13 @@ package com.sunshine.grpc.example.loadbalancing.zklb;
 import com.sunshine.grpc.example.helloworld.GreeterGrpc;
 import com.sunshine.grpc.example.helloworld.HelloReply;
 import com.sunshine.grpc.example.helloworld.HelloRequest;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
 import io.grpc.stub.StreamObserver;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
-import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
@@ -20,10 +21,16 @@ import java.io.IOException;
 import java.net.URI;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
+ * 注册到zookeeper的Greeter服务, 节点数据是{@link ServerLoad}的JSON, 由{@link LoadReportingInterceptor}统计,
+ * 每{@code -Dzk.load.reportIntervalMs}(默认1000ms)检查一次, 负载有明显变化时才写入zookeeper.
+ *
  * @author: hj
  * @date: 21-8-12 上午11:37
  */
@@ -32,10 +39,11 @@ public class HelloWorldServer {
     private static final Logger logger = LoggerFactory.getLogger(HelloWorldServer.class);
 
     private Server server;
+    private final LoadReportingInterceptor loadInterceptor = new LoadReportingInterceptor();
 
     private void start(String port) throws IOException {
         server = ServerBuilder.forPort(Integer.parseInt(port))
-                              .addService(new GreeterImpl())
+                              .addService(ServerInterceptors.intercept(new GreeterImpl(), loadInterceptor))
                               .build().start();
         logger.info("HelloSever started listening on :{}", port);
 
@@ -81,15 +89,22 @@ public class HelloWorldServer {
             return;
         }
 
+        final HelloWorldServer server = new HelloWorldServer();
+
         //注册服务到zookeeper
         ZookeeperConnection zkConnection = new ZookeeperConnection();
-        if (!zkConnection.connect(zkAddr, "localhost", portStr)){
+        if (!zkConnection.connect(zkAddr, "localhost", portStr, server.loadInterceptor.currentLoad())){
             return;
         }
+        zkConnection.startReporting(server.loadInterceptor::currentLoad,
+                Long.getLong("zk.load.reportIntervalMs", ZookeeperConnection.DEFAULT_REPORT_INTERVAL_MS));
 
-        final HelloWorldServer server = new HelloWorldServer();
         server.start(portStr);
-        server.blockUntilShutdown();
+        try {
+            server.blockUntilShutdown();
+        } finally {
+            zkConnection.close();
+        }
     }
 
     static class GreeterImpl extends GreeterGrpc.GreeterImplBase {
@@ -103,19 +118,51 @@ public class HelloWorldServer {
         }
     }
 
+    /**
+     * 服务在zookeeper中的注册: 服务路径下一个临时节点, 数据是当前的负载.
+     * <p>
+     * 临时节点随会话存在, 会话过期后节点被zookeeper删除, 这时在reporter线程上重建会话并用当前的负载重新注册,
+     * 失败时按指数退避重试; 重新注册完成之前不上报负载.
+     */
     static class ZookeeperConnection {
+        static final long DEFAULT_REPORT_INTERVAL_MS = 1000;
+        private static final String SERVER_PATH = "/grpc_hello_world_service";
+        private static final int SESSION_TIMEOUT_MS = 5000;
+        // 负载没有明显变化时, 最多隔这么多个周期也要写一次, 让客户端知道数据是新的
+        private static final int MAX_SILENT_INTERVALS = 10;
+        // 延迟变化超过这个比例才算明显变化
+        private static final double LATENCY_CHANGE_RATIO = 0.1;
+        // 进行中的请求数变化超过这个比例才算明显变化, 高负载时每个周期的小幅抖动不触发写入
+        private static final double IN_FLIGHT_CHANGE_RATIO = 0.2;
+        // 重新注册的退避
+        private static final long INITIAL_RECONNECT_MS = 100;
+        private static final long MAX_RECONNECT_MS = 30_000;
+
         private final Logger logger = LoggerFactory.getLogger(ZookeeperConnection.class);
-        private ZooKeeper zooKeeper;
+        // 负载上报和会话重建都在这个线程上执行
+        private final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("zk-load-reporter-%d").setDaemon(true).build());
+        private String zkHostPort;
+        private String serverAddr;
+        private volatile ZooKeeper zooKeeper;
+        private volatile Supplier<ServerLoad> load;
+        // zookeeper确认写入的负载, 在zookeeper的回调线程上更新
+        private volatile ServerLoad published;
+        // 当前会话中节点是否已经注册
+        private volatile boolean registered = false;
+        // 以下字段在connect之后只在reporter线程上访问
+        // 每创建一个会话加一, 用来丢弃旧会话迟到的事件
+        private int session = 0;
+        private int reconnectAttempts = 0;
+        private int silentIntervals = 0;
 
         /**
          * Connect to a zookeeper ensemble in zkUriStr.
          *
          * @return
          */
-        public boolean connect(String zkUriStr, String serverIp, String portStr) throws IOException {
-            final CountDownLatch connectSignal = new CountDownLatch(1);
-
-            String zkHostPort;
+        public boolean connect(String zkUriStr, String serverIp, String portStr, ServerLoad initialLoad)
+                throws IOException {
             try {
                 URI uri = new URI(zkUriStr);
                 zkHostPort = uri.getHost() + ":" + Integer.toString(uri.getPort());
@@ -123,61 +170,150 @@ public class HelloWorldServer {
                 logger.error("Cloud not parse zk URI:{}", zkUriStr, e);
                 return false;
             }
+            serverAddr = SERVER_PATH + "/" + serverIp + ":" + portStr;
+            load = () -> initialLoad;
+            zooKeeper = newSession();
+            registered = register(initialLoad);
+            return registered;
+        }
 
-            zooKeeper = new ZooKeeper(zkHostPort, 5000, new Watcher() {
-                @Override
-                public void process(WatchedEvent watchedEvent) {
-                    if (watchedEvent.getState() == Event.KeeperState.SyncConnected) {
-                        connectSignal.countDown();
+        // 创建会话, 会话过期的通知转到reporter线程上处理
+        private ZooKeeper newSession() throws IOException {
+            int current = ++session;
+            return new ZooKeeper(zkHostPort, SESSION_TIMEOUT_MS, event -> {
+                if (event.getState() == Watcher.Event.KeeperState.Expired) {
+                    try {
+                        reporter.execute(() -> onExpired(current));
+                    } catch (RejectedExecutionException e) {
+                        // 已经关闭, 不再重新注册
                     }
                 }
             });
-            /** Wait for zookeeper connect */
-            String serverPath = "/grpc_hello_world_service";
-            Stat stat;
+        }
 
+        /**
+         * 确保服务路径存在, 然后创建(或者更新)自己的临时节点, 数据为serverLoad
+         */
+        private boolean register(ServerLoad serverLoad) {
             String currTime = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss").format(new Date());
-
             try {
-                stat = zooKeeper.exists(serverPath, true);
+                if (zooKeeper.exists(SERVER_PATH, false) == null) {
+                    try {
+                        zooKeeper.create(SERVER_PATH, currTime.getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                                CreateMode.PERSISTENT);
+                    } catch (KeeperException.NodeExistsException e) {
+                        // 其他服务同时创建了
+                    }
+                }
+                byte[] data = serverLoad.toBytes();
+                Stat stat = zooKeeper.exists(serverAddr, false);
                 if (stat == null) {
-                    zooKeeper.create(serverPath, currTime.getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                    zooKeeper.create(serverAddr, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+                } else {
+                    zooKeeper.setData(serverAddr, data, stat.getVersion());
                 }
-            } catch (Exception e) {
-                logger.error("fail to create path:{}", serverPath, e);
+            } catch (KeeperException e) {
+                logger.error("fail to create path:{}, or update date", serverAddr, e);
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
                 return false;
             }
+            published = serverLoad;
+            return true;
+        }
 
-            String serverAddr = serverPath + "/" + serverIp + ":" + portStr;
+        private void onExpired(int expiredSession) {
+            if (expiredSession != session || reporter.isShutdown()) {
+                return;
+            }
+            // 临时节点已经随会话删除, 客户端不会再解析到这个服务
+            logger.warn("zookeeper session expired, re-registering {}", serverAddr);
+            registered = false;
+            closeSession();
+            reconnect();
+        }
 
+        private void reconnect() {
+            if (reporter.isShutdown()) {
+                return;
+            }
             try {
-                stat = zooKeeper.exists(serverAddr, true);
-                if (stat == null) {
-                    // 不存在创建
-                    try {
-                        zooKeeper.create(serverAddr, currTime.getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
-                    } catch (KeeperException e) {
-                        logger.error("fail to create path:{}", serverAddr, e);
-                        return false;
-                    }
+                zooKeeper = newSession();
+                if (register(load.get())) {
+                    logger.info("re-registered {} after session expiry", serverAddr);
+                    registered = true;
+                    reconnectAttempts = 0;
+                    silentIntervals = 0;
+                    return;
+                }
+                closeSession();
+            } catch (IOException e) {
+                logger.error("Failed to create zookeeper client for {}", zkHostPort, e);
+            }
+            long delay = Math.min(MAX_RECONNECT_MS, INITIAL_RECONNECT_MS << Math.min(reconnectAttempts, 20));
+            reconnectAttempts++;
+            logger.info("Retrying registration of {} in {}ms (attempt {})", serverAddr, delay, reconnectAttempts);
+            reporter.schedule(this::reconnect, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private void closeSession() {
+            try {
+                zooKeeper.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * 每隔intervalMs检查一次负载, 有明显变化或者太久没有写入时异步写入节点数据, 写入频率不会超过每周期一次
+         */
+        void startReporting(Supplier<ServerLoad> load, long intervalMs) {
+            this.load = load;
+            reporter.scheduleAtFixedRate(() -> report(load.get()), intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+
+        private void report(ServerLoad current) {
+            if (!registered) {
+                // 会话过期, 正在重新注册, 节点不存在
+                return;
+            }
+            if (!changed(published, current) && ++silentIntervals < MAX_SILENT_INTERVALS) {
+                return;
+            }
+            silentIntervals = 0;
+            // 写入成功之后才更新published, 失败时下个周期仍然和旧值比较, 会重新写入
+            zooKeeper.setData(serverAddr, current.toBytes(), -1, (rc, path, ctx, stat) -> {
+                if (rc == KeeperException.Code.OK.intValue()) {
+                    published = current;
                 } else {
-                    // 存在更新数据
-                    try {
-                        zooKeeper.setData(serverAddr, currTime.getBytes(), stat.getVersion());
-                    } catch (Exception e) {
-                        logger.error("Failed to update server data");
-                        return false;
-                    }
+                    logger.warn("Failed to publish load to {}: {}", path, KeeperException.Code.get(rc));
                 }
-            } catch (Exception e) {
-                logger.error("fail to create path:{}, or update date", serverAddr, e);
-                return false;
+            }, null);
+        }
+
+        static boolean changed(ServerLoad previous, ServerLoad current) {
+            if (previous == null || previous.getCpus() != current.getCpus()) {
+                return true;
             }
-            return true;
+            return changed(previous.getInFlight(), current.getInFlight(), IN_FLIGHT_CHANGE_RATIO)
+                    || changed(previous.getEwmaLatencyMs(), current.getEwmaLatencyMs(), LATENCY_CHANGE_RATIO);
+        }
+
+        // 相对变化超过ratio, 基数至少为1, 避免接近0时的微小变化也被当作明显变化
+        private static boolean changed(double previous, double current, double ratio) {
+            return Math.abs(current - previous) > Math.max(previous, 1) * ratio;
         }
 
-        private void close() throws InterruptedException {
-            zooKeeper.close();
+        ZooKeeper getZooKeeper() {
+            return zooKeeper;
+        }
+
+        void close() throws InterruptedException {
+            reporter.shutdownNow();
+            if (zooKeeper != null) {
+                zooKeeper.close();
+            }
         }
     }
 }
@@ -0,0 +1,93 @@
+package com.sunshine.grpc.example.loadbalancing.zklb;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 统计服务端正在处理的RPC数和延迟的指数移动平均, 由{@link HelloWorldServer.ZookeeperConnection}定期发布到zookeeper.
+ * <p>
+ * 调用正常结束(close)、被取消(onCancel)或者startCall抛出异常时计数减一, 只有先到的一个生效. 计数器都是无锁的原子变量,
+ * 不会在请求路径上引入竞争.
+ *
+ * @author: hj
+ * @date: 26-10-19 下午8:20
+ */
+public class LoadReportingInterceptor implements ServerInterceptor {
+    // 新样本的权重, 大约相当于最近10个请求的平均
+    private static final double ALPHA = 0.2;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // double的bit, 用CAS更新
+    private final AtomicLong ewmaLatencyBits = new AtomicLong(Double.doubleToLongBits(0));
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        long start = System.nanoTime();
+        AtomicBoolean done = new AtomicBoolean();
+        inFlight.incrementAndGet();
+        ServerCall<ReqT, RespT> tracked = new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void close(Status status, Metadata trailers) {
+                finish(done, start);
+                super.close(status, trailers);
+            }
+        };
+        ServerCall.Listener<ReqT> listener;
+        try {
+            listener = next.startCall(tracked, headers);
+        } catch (RuntimeException | Error e) {
+            // startCall抛出异常时不会再有onCancel, 调用也可能没有被close, 在这里结束计数
+            finish(done, start);
+            throw e;
+        }
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(listener) {
+            @Override
+            public void onCancel() {
+                finish(done, start);
+                super.onCancel();
+            }
+        };
+    }
+
+    private void finish(AtomicBoolean done, long start) {
+        if (!done.compareAndSet(false, true)) {
+            return;
+        }
+        inFlight.decrementAndGet();
+        double sample = (System.nanoTime() - start) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        long prev;
+        long next;
+        do {
+            prev = ewmaLatencyBits.get();
+            double ewma = Double.longBitsToDouble(prev);
+            next = Double.doubleToLongBits(ewma == 0 ? sample : ewma + ALPHA * (sample - ewma));
+        } while (!ewmaLatencyBits.compareAndSet(prev, next));
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public double ewmaLatencyMs() {
+        return Double.longBitsToDouble(ewmaLatencyBits.get());
+    }
+
+    /**
+     * @return 当前的负载, 延迟保留两位小数, 避免无意义的小数变化触发发布
+     */
+    public ServerLoad currentLoad() {
+        return new ServerLoad(Runtime.getRuntime().availableProcessors(), inFlight(),
+                Math.round(ewmaLatencyMs() * 100) / 100.0);
+    }
+}
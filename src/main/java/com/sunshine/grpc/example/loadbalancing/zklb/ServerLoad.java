@@ -0,0 +1,89 @@
+package com.sunshine.grpc.example.loadbalancing.zklb;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import io.grpc.Attributes;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * 服务端发布在zookeeper节点数据中的容量和负载, JSON格式, 例如{@code {"cpus":8,"inFlight":3,"ewmaLatencyMs":1.5}}.
+ * <p>
+ * 客户端的{@link ZkNameResolver}把它放在{@link io.grpc.EquivalentAddressGroup}的{@link #ATTR_KEY}属性中,
+ * 供负载均衡策略使用; 旧版本服务端写入的时间戳等无法解析的数据当作没有负载信息.
+ *
+ * @author: hj
+ * @date: 26-10-19 下午8:05
+ */
+public final class ServerLoad {
+    public static final Attributes.Key<ServerLoad> ATTR_KEY = Attributes.Key.create("zk-server-load");
+
+    private static final Gson GSON = new Gson();
+
+    private final int cpus;
+    private final int inFlight;
+    private final double ewmaLatencyMs;
+
+    public ServerLoad(int cpus, int inFlight, double ewmaLatencyMs) {
+        this.cpus = cpus;
+        this.inFlight = inFlight;
+        this.ewmaLatencyMs = ewmaLatencyMs;
+    }
+
+    /**
+     * @return 节点数据中的负载, 数据为空或者不是负载JSON时返回null
+     */
+    @Nullable
+    public static ServerLoad parse(@Nullable byte[] data) {
+        if (data == null || data.length == 0) {
+            return null;
+        }
+        try {
+            ServerLoad load = GSON.fromJson(new String(data, StandardCharsets.UTF_8), ServerLoad.class);
+            return load == null || load.cpus <= 0 ? null : load;
+        } catch (JsonParseException e) {
+            return null;
+        }
+    }
+
+    public byte[] toBytes() {
+        return GSON.toJson(this).getBytes(StandardCharsets.UTF_8);
+    }
+
+    public int getCpus() {
+        return cpus;
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    public double getEwmaLatencyMs() {
+        return ewmaLatencyMs;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ServerLoad)) {
+            return false;
+        }
+        ServerLoad that = (ServerLoad) o;
+        return cpus == that.cpus && inFlight == that.inFlight
+                && Double.compare(ewmaLatencyMs, that.ewmaLatencyMs) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(cpus, inFlight, ewmaLatencyMs);
+    }
+
+    @Override
+    public String toString() {
+        return "ServerLoad{cpus=" + cpus + ", inFlight=" + inFlight + ", ewmaLatencyMs=" + ewmaLatencyMs + '}';
+    }
+}
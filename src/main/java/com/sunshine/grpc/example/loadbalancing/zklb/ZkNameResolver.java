@@ -0,0 +1,436 @@
+package com.sunshine.grpc.example.loadbalancing.zklb;
+
+import com.google.common.annotations.VisibleForTesting;
+import io.grpc.Attributes;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.NameResolver;
+import io.grpc.Status;
+import io.grpc.SynchronizationContext;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 从zookeeper的{@link #PATH}下的子节点({@code host:port})解析服务地址.
+ * <p>
+ * 完全异步: 创建{@link ZooKeeper}不会等待连接, exists/getChildren都使用异步回调, 回调和watch事件都转到channel的
+ * {@link SynchronizationContext}上处理, 所以{@link #start(Listener2)}立即返回, 不会阻塞创建channel的线程.
+ * <p>
+ * 启动时先把{@link EndpointSnapshot}中上一次的地址交给channel, 客户端可以马上开始发送请求;
+ * 连接上zookeeper之后用最新的地址覆盖, 并更新快照. zookeeper不可用期间继续使用最后一次的地址.
+ * <p>
+ * 滚动发布时子节点会连续变化, watch事件先在去抖窗口内合并, 窗口结束后只获取一次服务列表;
+ * 再和当前的地址集合比较, 只有成员真的变化时才给channel推送一次完整的更新, 避免负载均衡反复重建subchannel.
+ * <p>
+ * 会话过期后旧的{@link ZooKeeper}不能再使用, watch也随会话一起失效: 关闭旧的客户端, 按指数退避(带抖动)重新创建,
+ * 连接上之后重新获取服务列表并设置watch. 没有任何可用地址时通过{@link Listener2#onError}报告UNAVAILABLE,
+ * channel会按自己的退避调用{@link #refresh()}重新获取.
+ * <p>
+ * 每个服务节点的数据是{@link ServerLoad}, 作为{@link ServerLoad#ATTR_KEY}属性放在地址上. 新成员的负载读到之后才推送
+ * 成员变化; 之后每个节点单独watch数据变化, 只重新读取变化的节点, 负载更新同样经过去抖窗口合并后再推送.
+ *
+ * @author: hj
+ * @date: 21-8-12 上午11:37
+ */
+public class ZkNameResolver extends NameResolver {
+    private static final Logger logger = LoggerFactory.getLogger(ZkNameResolver.class);
+
+    /**
+     * Hard-coded path to the ZkNode that knows about servers.
+     * Note this must match with the path used by HelloWorldServer
+     */
+    public static final String PATH = "/grpc_hello_world_service";
+
+    /**
+     * 2 seconds to indicate that client disconnected
+     */
+    public static final int TIMEOUT_MS = 2000;
+
+    // 重建会话的退避
+    private static final long INITIAL_RECONNECT_MS = 100;
+    private static final long MAX_RECONNECT_MS = 30_000;
+    private static final double RECONNECT_JITTER = 0.2;
+
+    private final URI zkUri;
+    private final SynchronizationContext syncContext;
+    // 写快照等阻塞操作, channel没有提供时在syncContext上直接执行
+    private final Executor offloadExecutor;
+    private final ScheduledExecutorService timerService;
+    private final EndpointSnapshot snapshot;
+    private final long debounceMs;
+    private final ZkResolverStats stats;
+
+    // 以下字段只在syncContext上访问
+    private Listener2 listener;
+    private ZooKeeper zoo;
+    // 每创建一个会话加一, 用来丢弃旧会话迟到的事件和回调
+    private int session = 0;
+    private boolean connected = false;
+    private boolean shutdown = false;
+    // 当前的服务成员(保持zookeeper返回的顺序)和各自的负载, 没有负载信息时为null
+    private Map<String, ServerLoad> servers = new LinkedHashMap<>();
+    // 当前会话中已经读取过负载(并设置了数据watch)的成员
+    private final Set<String> watchedLoads = new HashSet<>();
+    // 成员变化后正在读取负载的新成员, 全部读完才推送
+    private final Set<String> loadingMembers = new HashSet<>();
+    // 推送给channel的成员和负载, 用于比较是否变化
+    private Map<String, ServerLoad> pushed = Collections.emptyMap();
+    // 去抖窗口内等待执行的获取和负载推送
+    private SynchronizationContext.ScheduledHandle pendingFetch;
+    private SynchronizationContext.ScheduledHandle pendingPush;
+    private SynchronizationContext.ScheduledHandle reconnectTimer;
+    private int reconnectAttempts = 0;
+
+    // 子节点变化或者服务路径被创建时重新获取服务列表
+    private final Watcher serversWatcher;
+    // 服务节点的数据(负载)变化时只重新读取这个节点
+    private final Watcher loadWatcher;
+
+    public ZkNameResolver(URI zkUri, Args args, EndpointSnapshot snapshot, long debounceMs, ZkResolverStats stats) {
+        this.zkUri = zkUri;
+        this.syncContext = args.getSynchronizationContext();
+        this.offloadExecutor = args.getOffloadExecutor() != null ? args.getOffloadExecutor() : syncContext;
+        this.timerService = args.getScheduledExecutorService();
+        this.snapshot = snapshot;
+        this.debounceMs = debounceMs;
+        this.stats = stats;
+        this.serversWatcher = event -> {
+            if (event.getType() == Watcher.Event.EventType.NodeChildrenChanged
+                    || event.getType() == Watcher.Event.EventType.NodeCreated) {
+                syncContext.execute(this::onServersChanged);
+            }
+        };
+        this.loadWatcher = event -> {
+            if (event.getType() == Watcher.Event.EventType.NodeDataChanged && event.getPath() != null) {
+                String child = event.getPath().substring(PATH.length() + 1);
+                syncContext.execute(() -> onLoadChanged(child));
+            }
+        };
+    }
+
+    @Override
+    public String getServiceAuthority() {
+        return zkUri.getAuthority();
+    }
+
+    @Override
+    public void start(Listener2 listener) {
+        this.listener = listener;
+        List<String> cached = snapshot.load();
+        if (!cached.isEmpty()) {
+            logger.info("Using {} servers from snapshot {}", cached.size(), snapshot.getFile());
+            onMembers(cached, false);
+        }
+        connect();
+    }
+
+    /**
+     * channel在解析出错或者连接失败时调用: 已连接时立即重新获取, 否则立即重建会话
+     */
+    @Override
+    public void refresh() {
+        if (shutdown) {
+            return;
+        }
+        if (connected) {
+            if (pendingFetch != null) {
+                pendingFetch.cancel();
+            }
+            watchServers();
+        } else if (zoo == null) {
+            if (reconnectTimer != null) {
+                reconnectTimer.cancel();
+            }
+            connect();
+        }
+        // 其余情况zookeeper客户端正在自己重连, 连上之后会重新获取
+    }
+
+    @Override
+    public void shutdown() {
+        if (shutdown) {
+            return;
+        }
+        shutdown = true;
+        if (pendingFetch != null) {
+            pendingFetch.cancel();
+            pendingFetch = null;
+        }
+        if (pendingPush != null) {
+            pendingPush.cancel();
+            pendingPush = null;
+        }
+        if (reconnectTimer != null) {
+            reconnectTimer.cancel();
+            reconnectTimer = null;
+        }
+        closeSession();
+    }
+
+    @VisibleForTesting
+    ZooKeeper getZooKeeper() {
+        return zoo;
+    }
+
+    private void connect() {
+        reconnectTimer = null;
+        if (shutdown) {
+            return;
+        }
+        String zkAddr = zkUri.getHost() + ":" + zkUri.getPort();
+        logger.info("Connecting to zookeeper Address " + zkAddr);
+        int current = ++session;
+        try {
+            // 只是创建客户端, 连接在zookeeper的后台线程上进行
+            zoo = new ZooKeeper(zkAddr, TIMEOUT_MS,
+                    event -> syncContext.execute(() -> onConnectionEvent(current, event)));
+        } catch (IOException | IllegalArgumentException e) {
+            logger.error("Failed to create zookeeper client for {}", zkAddr, e);
+            scheduleReconnect();
+        }
+    }
+
+    private void closeSession() {
+        connected = false;
+        // 数据watch随会话失效, 新会话中重新读取所有负载
+        watchedLoads.clear();
+        loadingMembers.clear();
+        if (zoo != null) {
+            ZooKeeper closing = zoo;
+            zoo = null;
+            // 之后旧会话的事件和回调都会被忽略
+            session++;
+            offloadExecutor.execute(() -> {
+                try {
+                    closing.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+    }
+
+    private void scheduleReconnect() {
+        if (shutdown || reconnectTimer != null) {
+            return;
+        }
+        long backoff = Math.min(MAX_RECONNECT_MS, INITIAL_RECONNECT_MS << Math.min(reconnectAttempts, 20));
+        long delay = (long) (backoff * (1 + RECONNECT_JITTER * (ThreadLocalRandom.current().nextDouble() * 2 - 1)));
+        reconnectAttempts++;
+        logger.info("Recreating zookeeper session in {}ms (attempt {})", delay, reconnectAttempts);
+        reconnectTimer = syncContext.schedule(this::connect, delay, TimeUnit.MILLISECONDS, timerService);
+    }
+
+    private void onConnectionEvent(int eventSession, WatchedEvent event) {
+        if (shutdown || eventSession != session) {
+            return;
+        }
+        switch (event.getState()) {
+            case SyncConnected:
+                // 第一次连接或者断线重连之后, 重新获取服务列表并设置watch
+                logger.info("Connected!");
+                connected = true;
+                reconnectAttempts = 0;
+                watchServers();
+                break;
+            case Disconnected:
+                // 会话还在, zookeeper客户端会自己重连
+                logger.info("Disconnected from zookeeper, keep using the last known servers");
+                connected = false;
+                break;
+            case Expired:
+                // 会话和上面的watch都已经失效, 只能重建
+                logger.info("Connection expired, recreating the session");
+                closeSession();
+                scheduleReconnect();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onServersChanged() {
+        if (shutdown) {
+            return;
+        }
+        stats.recordWatchEvent();
+        if (pendingFetch != null && pendingFetch.isPending()) {
+            return;
+        }
+        // watch是一次性的, 在获取之前不会再收到事件, 窗口内的所有变化由这一次获取合并
+        pendingFetch = syncContext.schedule(this::watchServers, debounceMs, TimeUnit.MILLISECONDS, timerService);
+    }
+
+    private void watchServers() {
+        pendingFetch = null;
+        if (shutdown || zoo == null) {
+            return;
+        }
+        stats.recordFetch();
+        int current = session;
+        zoo.getChildren(PATH, serversWatcher, (AsyncCallback.ChildrenCallback) (rc, path, ctx, children) ->
+                syncContext.execute(() -> onServers(current, KeeperException.Code.get(rc), children)), null);
+    }
+
+    private void onServers(int eventSession, KeeperException.Code code, List<String> children) {
+        if (shutdown || eventSession != session) {
+            return;
+        }
+        switch (code) {
+            case OK:
+                onMembers(children, true);
+                break;
+            case NONODE:
+                // 服务还没有注册过, 等待路径被创建
+                logger.info("PATH does not exist.");
+                noServers();
+                zoo.exists(PATH, serversWatcher, (rc, path, ctx, stat) -> {
+                    if (KeeperException.Code.get(rc) == KeeperException.Code.OK) {
+                        syncContext.execute(this::onServersChanged);
+                    }
+                }, null);
+                break;
+            default:
+                // 连接断开等错误, 重连之后会重新获取
+                logger.info("Failed to get servers: {}", code);
+                break;
+        }
+    }
+
+    private void onMembers(List<String> children, boolean fromZookeeper) {
+        Map<String, ServerLoad> members = new LinkedHashMap<>();
+        for (String child : children) {
+            if (parseAddress(child) != null) {
+                members.put(child, servers.get(child));
+            }
+        }
+        if (members.isEmpty()) {
+            noServers();
+            return;
+        }
+        boolean changed = !members.keySet().equals(servers.keySet());
+        servers = members;
+        watchedLoads.retainAll(members.keySet());
+        loadingMembers.retainAll(members.keySet());
+        if (fromZookeeper) {
+            for (String child : members.keySet()) {
+                if (!watchedLoads.contains(child)) {
+                    readLoad(child, true);
+                }
+            }
+            if (changed) {
+                List<String> copy = Collections.unmodifiableList(new ArrayList<>(members.keySet()));
+                offloadExecutor.execute(() -> snapshot.save(copy));
+            }
+        }
+        if (loadingMembers.isEmpty()) {
+            pushUpdate();
+        }
+    }
+
+    private void onLoadChanged(String child) {
+        if (shutdown || zoo == null || !servers.containsKey(child)) {
+            return;
+        }
+        stats.recordWatchEvent();
+        readLoad(child, false);
+    }
+
+    private void readLoad(String child, boolean newMember) {
+        watchedLoads.add(child);
+        if (newMember) {
+            loadingMembers.add(child);
+        }
+        int current = session;
+        zoo.getData(PATH + "/" + child, loadWatcher, (rc, path, ctx, data, stat) -> syncContext.execute(
+                () -> onLoad(current, child, newMember, KeeperException.Code.get(rc), data)), null);
+    }
+
+    private void onLoad(int eventSession, String child, boolean newMember, KeeperException.Code code, byte[] data) {
+        if (shutdown || eventSession != session) {
+            return;
+        }
+        if (code != KeeperException.Code.OK) {
+            // 节点已经删除或者连接断开, 下次获取成员时重新读取
+            watchedLoads.remove(child);
+        } else if (servers.containsKey(child)) {
+            servers.put(child, ServerLoad.parse(data));
+        }
+        if (!newMember) {
+            schedulePush();
+        } else if (loadingMembers.remove(child) && loadingMembers.isEmpty()) {
+            pushUpdate();
+        }
+    }
+
+    private void schedulePush() {
+        if (pendingPush != null && pendingPush.isPending()) {
+            return;
+        }
+        pendingPush = syncContext.schedule(this::pushUpdate, debounceMs, TimeUnit.MILLISECONDS, timerService);
+    }
+
+    private void pushUpdate() {
+        if (pendingPush != null) {
+            pendingPush.cancel();
+            pendingPush = null;
+        }
+        if (servers.equals(pushed)) {
+            // 成员和负载都没有变化(比如重连之后重新获取), 不打扰channel
+            stats.recordSkipped();
+            return;
+        }
+        long start = System.nanoTime();
+        List<EquivalentAddressGroup> addrs = new ArrayList<>(servers.size());
+        for (Map.Entry<String, ServerLoad> server : servers.entrySet()) {
+            Attributes attrs = server.getValue() == null
+                    ? Attributes.EMPTY
+                    : Attributes.newBuilder().set(ServerLoad.ATTR_KEY, server.getValue()).build();
+            addrs.add(new EquivalentAddressGroup(parseAddress(server.getKey()), attrs));
+        }
+        logger.info("Updating server list: {}", servers);
+        pushed = new LinkedHashMap<>(servers);
+        listener.onResult(ResolutionResult.newBuilder()
+                                          .setAddresses(addrs)
+                                          .setAttributes(Attributes.EMPTY)
+                                          .build());
+        stats.recordPushed(System.nanoTime() - start);
+    }
+
+    private static InetSocketAddress parseAddress(String child) {
+        try {
+            URI uri = new URI("zookeeper://" + child);
+            return new InetSocketAddress(uri.getHost(), uri.getPort());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            logger.error("Unparsable server address:{}", child, e);
+            return null;
+        }
+    }
+
+    private void noServers() {
+        logger.info("No servers online. Keep looking");
+        // 已经在用的地址不会被清空, channel的负载均衡只在没有可用连接时才进入TRANSIENT_FAILURE
+        listener.onError(Status.UNAVAILABLE.withDescription("no servers registered under " + PATH + " on "
+                + zkUri.getAuthority()));
+    }
+}
@@ -0,0 +1,71 @@
+package com.sunshine.grpc.example.loadbalancing.zklb;
+
+import io.grpc.NameResolver;
+import io.grpc.NameResolverProvider;
+
+import javax.annotation.Nullable;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * {@code zk://host:port}的{@link ZkNameResolver}.
+ * <p>
+ * 地址快照默认保存在{@code ${java.io.tmpdir}/grpc-zk-resolver}下, 可以用{@code -Dzk.resolver.snapshotDir}指定.
+ * 服务列表变化的去抖窗口默认{@value #DEFAULT_DEBOUNCE_MS}ms, 可以用{@code -Dzk.resolver.debounceMs}指定.
+ *
+ * @author: hj
+ * @date: 21-8-12 上午11:37
+ */
+public class ZkNameResolverProvider extends NameResolverProvider {
+    static final long DEFAULT_DEBOUNCE_MS = 100;
+
+    private final Path snapshotDir;
+    private final long debounceMs;
+    private final ZkResolverStats stats = new ZkResolverStats();
+
+    public ZkNameResolverProvider() {
+        this(Paths.get(System.getProperty("zk.resolver.snapshotDir",
+                Paths.get(System.getProperty("java.io.tmpdir"), "grpc-zk-resolver").toString())),
+                Long.getLong("zk.resolver.debounceMs", DEFAULT_DEBOUNCE_MS));
+    }
+
+    public ZkNameResolverProvider(Path snapshotDir, long debounceMs) {
+        this.snapshotDir = snapshotDir;
+        this.debounceMs = debounceMs;
+    }
+
+    /**
+     * @return 这个provider创建的所有resolver的统计
+     */
+    public ZkResolverStats getStats() {
+        return stats;
+    }
+
+    @Override
+    protected boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    protected int priority() {
+        return 5;
+    }
+
+    @Nullable
+    @Override
+    public NameResolver newNameResolver(URI targetUri, NameResolver.Args args) {
+        if (!getDefaultScheme().equals(targetUri.getScheme())) {
+            return null;
+        }
+        // 每个zookeeper集群+服务路径一个快照文件
+        String name = (targetUri.getAuthority() + ZkNameResolver.PATH).replaceAll("[^A-Za-z0-9._-]", "_");
+        return new ZkNameResolver(targetUri, args, new EndpointSnapshot(snapshotDir.resolve(name + ".endpoints")),
+                debounceMs, stats);
+    }
+
+    @Override
+    public String getDefaultScheme() {
+        return "zk";
+    }
+}
@@ -0,0 +1,90 @@
+package com.sunshine.grpc.example.loadbalancing.zklb;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link ZkNameResolver}的统计, 同一个{@link ZkNameResolverProvider}创建的所有resolver共享一个实例.
+ * <p>
+ * 只在syncContext上写入, 用原子变量是为了其他线程(比如监控)读取时可见.
+ *
+ * @author: hj
+ * @date: 26-10-19 下午7:10
+ */
+public class ZkResolverStats {
+    private final AtomicLong watchEvents = new AtomicLong();
+    private final AtomicLong fetches = new AtomicLong();
+    private final AtomicLong updatesPushed = new AtomicLong();
+    private final AtomicLong updatesSkipped = new AtomicLong();
+    private final AtomicLong lastUpdateNanos = new AtomicLong();
+    private final AtomicLong totalUpdateNanos = new AtomicLong();
+
+    void recordWatchEvent() {
+        watchEvents.incrementAndGet();
+    }
+
+    void recordFetch() {
+        fetches.incrementAndGet();
+    }
+
+    void recordSkipped() {
+        updatesSkipped.incrementAndGet();
+    }
+
+    void recordPushed(long nanos) {
+        updatesPushed.incrementAndGet();
+        lastUpdateNanos.set(nanos);
+        totalUpdateNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return 收到的服务列表变化的watch事件数
+     */
+    public long watchEvents() {
+        return watchEvents.get();
+    }
+
+    /**
+     * @return 实际从zookeeper获取服务列表的次数, 去抖窗口内的多个事件只获取一次
+     */
+    public long fetches() {
+        return fetches.get();
+    }
+
+    /**
+     * @return 推送给channel的地址更新次数
+     */
+    public long updatesPushed() {
+        return updatesPushed.get();
+    }
+
+    /**
+     * @return 服务列表没有变化而跳过的更新次数
+     */
+    public long updatesSkipped() {
+        return updatesSkipped.get();
+    }
+
+    /**
+     * @return 最近一次推送更新的耗时, 包括构造地址和channel处理更新
+     */
+    public long lastUpdateNanos() {
+        return lastUpdateNanos.get();
+    }
+
+    public long totalUpdateNanos() {
+        return totalUpdateNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        long pushed = updatesPushed.get();
+        return "ZkResolverStats{watchEvents=" + watchEvents.get()
+                + ", fetches=" + fetches.get()
+                + ", updatesPushed=" + pushed
+                + ", updatesSkipped=" + updatesSkipped.get()
+                + ", lastUpdateMicros=" + TimeUnit.NANOSECONDS.toMicros(lastUpdateNanos.get())
+                + ", avgUpdateMicros=" + (pushed == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalUpdateNanos.get()) / pushed)
+                + '}';
+    }
+}
@@ -0,0 +1,91 @@
+package com.sunshine.grpc.example.marshaller;
+
+import com.google.common.io.ByteStreams;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 直接传输已经序列化好的消息字节的{@link MethodDescriptor.Marshaller}.
+ * <p>
+ * stream返回的InputStream实现了{@link KnownLength}和{@link Drainable}, 传输层可以一次性知道消息长度,
+ * 并把字节直接拷贝到自己的缓冲区里, 不需要再经过protobuf编码.
+ *
+ * @author: hj
+ * @date: 26-10-18 下午3:20
+ */
+public final class ByteBufferMarshaller implements MethodDescriptor.Marshaller<ByteBuffer> {
+    public static final ByteBufferMarshaller INSTANCE = new ByteBufferMarshaller();
+
+    private ByteBufferMarshaller() {
+    }
+
+    @Override
+    public InputStream stream(ByteBuffer value) {
+        // duplicate一份, 同一个缓存的buffer可以同时被多个调用发送
+        return new ByteBufferInputStream(value.duplicate());
+    }
+
+    @Override
+    public ByteBuffer parse(InputStream stream) {
+        try {
+            return ByteBuffer.wrap(ByteStreams.toByteArray(stream));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream implements KnownLength, Drainable {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public int drainTo(OutputStream target) throws IOException {
+            int count = buffer.remaining();
+            if (buffer.hasArray()) {
+                target.write(buffer.array(), buffer.arrayOffset() + buffer.position(), count);
+                buffer.position(buffer.limit());
+            } else {
+                byte[] chunk = new byte[Math.min(count, 8192)];
+                while (buffer.hasRemaining()) {
+                    int length = Math.min(chunk.length, buffer.remaining());
+                    buffer.get(chunk, 0, length);
+                    target.write(chunk, 0, length);
+                }
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.sunshine.grpc.example.marshaller;
+
+import com.google.protobuf.MessageLite;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 不可变的消息和它的序列化字节, 字节在第一次读取时生成并缓存, 之后同一个消息的所有响应都直接发送这份字节.
+ * <p>
+ * 消息更新时应该替换成新的SerializedMessage, 而不是修改已有的, 所以缓存的字节永远不会过期.
+ *
+ * @author: hj
+ * @date: 26-10-18 下午4:30
+ */
+public final class SerializedMessage<T extends MessageLite> {
+    private final T message;
+    private volatile ByteBuffer serialized;
+
+    public SerializedMessage(T message) {
+        this.message = message;
+    }
+
+    public T getMessage() {
+        return message;
+    }
+
+    /**
+     * 消息的wire format字节, 多个调用共享同一个buffer, 调用方不能修改它的内容,
+     * 交给{@link ByteBufferMarshaller}发送时会自动duplicate
+     */
+    public ByteBuffer getSerialized() {
+        ByteBuffer bytes = serialized;
+        if (bytes == null) {
+            // 并发时可能重复序列化, 结果相同, 不需要加锁
+            bytes = ByteBuffer.wrap(message.toByteArray());
+            serialized = bytes;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,57 @@
+package com.sunshine.grpc.example.marshaller;
+
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.ServiceDescriptor;
+import io.grpc.stub.ServerCalls;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 把服务中的某个unary方法替换成直接返回序列化字节的实现.
+ * <p>
+ * 方法名和请求的marshaller不变, 只是响应的marshaller换成{@link ByteBufferMarshaller}, 对客户端完全透明,
+ * 客户端仍然按原来的消息类型解析响应.
+ * <p>
+ * 用法:
+ * <pre>
+ * ServerServiceDefinition service = SerializedResponses.replaceUnary(impl.bindService(),
+ *         XxxGrpc.getGetXxxMethod(), impl::getXxxSerialized);
+ * </pre>
+ *
+ * @author: hj
+ * @date: 26-10-18 下午3:35
+ */
+public final class SerializedResponses {
+
+    private SerializedResponses() {
+    }
+
+    public static <ReqT> ServerServiceDefinition replaceUnary(ServerServiceDefinition service,
+                                                              MethodDescriptor<ReqT, ?> method,
+                                                              ServerCalls.UnaryMethod<ReqT, ByteBuffer> handler) {
+        MethodDescriptor<ReqT, ByteBuffer> serializedMethod =
+                method.toBuilder(method.getRequestMarshaller(), ByteBufferMarshaller.INSTANCE).build();
+        String fullMethodName = method.getFullMethodName();
+
+        // ServerServiceDefinition要求方法和ServiceDescriptor中的是同一个实例, 所以ServiceDescriptor也要重建
+        ServiceDescriptor original = service.getServiceDescriptor();
+        ServiceDescriptor.Builder descriptor = ServiceDescriptor.newBuilder(original.getName())
+                                                                .setSchemaDescriptor(original.getSchemaDescriptor());
+        for (MethodDescriptor<?, ?> descriptorMethod : original.getMethods()) {
+            descriptor.addMethod(fullMethodName.equals(descriptorMethod.getFullMethodName())
+                    ? serializedMethod : descriptorMethod);
+        }
+
+        ServerServiceDefinition.Builder builder = ServerServiceDefinition.builder(descriptor.build());
+        for (ServerMethodDefinition<?, ?> definition : service.getMethods()) {
+            if (fullMethodName.equals(definition.getMethodDescriptor().getFullMethodName())) {
+                builder.addMethod(serializedMethod, ServerCalls.asyncUnaryCall(handler));
+            } else {
+                builder.addMethod(definition);
+            }
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,146 @@
+package com.sunshine.grpc.example.ordermanagement;
+
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Striped;
+import com.sunshine.grpc.example.marshaller.SerializedMessage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * 基于{@link ConcurrentSkipListMap}的订单存储.
+ * <p>
+ * 读(get/遍历)完全无锁; 写按订单id分段加锁(lock striping), 不同id的写入可以在多个核上并行,
+ * 同一个id的写入串行, 方便在写路径上挂载需要和数据保持一致的附加结构(索引等).
+ * <p>
+ * 跳表的迭代器是弱一致的: 不会阻塞写, 不会抛出ConcurrentModificationException, 每个订单最多出现一次,
+ * 并且由于{@link Order}本身不可变, 读到的总是某个完整的订单版本.
+ * <p>
+ * 每个订单和它的序列化字节保存在同一个{@link SerializedMessage}里, 字节在第一次{@link #getSerialized(String)}时生成,
+ * 之后热点订单的getOrder直接发送缓存的字节. 写入时整个条目被替换, 不存在缓存失效的问题.
+ *
+ * @author: hj
+ * @date: 26-10-17 上午10:20
+ */
+public class ConcurrentOrderStore implements OrderStore {
+    private static final int DEFAULT_STRIPES = 64;
+
+    private final ConcurrentNavigableMap<String, SerializedMessage<Order>> orders = new ConcurrentSkipListMap<>();
+    private final Striped<Lock> writeLocks;
+    private final List<OrderStoreListener> listeners = new CopyOnWriteArrayList<>();
+
+    public ConcurrentOrderStore() {
+        this(DEFAULT_STRIPES);
+    }
+
+    public ConcurrentOrderStore(int stripes) {
+        this.writeLocks = Striped.lock(stripes);
+    }
+
+    @Override
+    public Order get(String id) {
+        SerializedMessage<Order> entry = orders.get(id);
+        return entry == null ? null : entry.getMessage();
+    }
+
+    @Override
+    public ByteBuffer getSerialized(String id) {
+        SerializedMessage<Order> entry = orders.get(id);
+        return entry == null ? null : entry.getSerialized();
+    }
+
+    @Override
+    public Order put(Order order) {
+        String id = order.getId();
+        Lock lock = writeLocks.get(id);
+        lock.lock();
+        try {
+            Order previous = get(id);
+            write(OrderStore.nextVersion(order, previous), previous);
+            return previous;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean restore(Order order) {
+        String id = order.getId();
+        Lock lock = writeLocks.get(id);
+        lock.lock();
+        try {
+            Order previous = get(id);
+            Order current = OrderStore.restoredVersion(order, previous);
+            if (current == null) {
+                return false;
+            }
+            write(current, previous);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Order compareAndSet(Order order, long expectedVersion) {
+        String id = order.getId();
+        Lock lock = writeLocks.get(id);
+        lock.lock();
+        try {
+            Order previous = get(id);
+            if ((previous == null ? 0 : previous.getVersion()) != expectedVersion) {
+                return null;
+            }
+            Order current = OrderStore.nextVersion(order, previous);
+            write(current, previous);
+            return current;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 必须持有id对应的写锁
+    private void write(Order current, Order previous) {
+        orders.put(current.getId(), new SerializedMessage<>(current));
+        for (OrderStoreListener listener : listeners) {
+            listener.onOrderWritten(previous, current);
+        }
+    }
+
+    @Override
+    public List<Order> getAll(List<String> ids) {
+        List<Order> result = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            result.add(get(id));
+        }
+        return result;
+    }
+
+    @Override
+    public int size() {
+        return orders.size();
+    }
+
+    @Override
+    public Iterable<Order> orders() {
+        return Iterables.transform(orders.values(), SerializedMessage::getMessage);
+    }
+
+    @Override
+    public Iterable<Order> ordersAfter(String afterId) {
+        if (afterId == null) {
+            return orders();
+        }
+        return Iterables.transform(orders.tailMap(afterId, false).values(), SerializedMessage::getMessage);
+    }
+
+    @Override
+    public void addListener(OrderStoreListener listener) {
+        listeners.add(listener);
+    }
+}
@@ -0,0 +1,47 @@
+package com.sunshine.grpc.example.ordermanagement;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 目的地到订单id的二级索引, 查询某个目的地的所有订单时只访问命中的订单, 不需要扫描整个存储.
+ * <p>
+ * 作为{@link OrderStoreListener}注册到{@link OrderStore}上, 在写锁内随写入维护, 订单修改目的地时
+ * 从旧目的地移到新目的地. 每个目的地的id集合是有序的, 遍历是弱一致的, 不会阻塞写入.
+ *
+ * @author: hj
+ * @date: 26-10-18 下午5:10
+ */
+public class DestinationIndex implements OrderStoreListener {
+    private final Map<String, Posting> postings = new ConcurrentHashMap<>();
+
+    @Override
+    public void onOrderWritten(Order previous, Order current) {
+        String id = current.getId();
+        String destination = current.getDestination();
+        if (previous != null && !previous.getDestination().equals(destination)) {
+            Posting posting = postings.get(previous.getDestination());
+            if (posting != null) {
+                posting.remove(id);
+            }
+        }
+        postings.computeIfAbsent(destination, k -> new Posting()).add(id);
+    }
+
+    /**
+     * 目的地为destination的订单id, 按id升序
+     */
+    public Iterable<String> orderIds(String destination) {
+        Posting posting = postings.get(destination);
+        return posting == null ? Collections.<String>emptySet() : posting.ids();
+    }
+
+    /**
+     * 目的地为destination的订单数, O(1), 用于查询计划比较选择性
+     */
+    public int count(String destination) {
+        Posting posting = postings.get(destination);
+        return posting == null ? 0 : posting.size();
+    }
+}
@@ -0,0 +1,65 @@
+package com.sunshine.grpc.example.ordermanagement;
+
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+
+/**
+ * 受流控的服务端流式响应.
+ * <p>
+ * 只在{@link ServerCallStreamObserver#isReady()}为true时发送, 发送缓冲区满了就停下来, 由onReadyHandler在
+ * 客户端消费后从上次的位置(游标, 即尚未耗尽的{@link Iterator})继续发送. 客户端取消后不再做任何工作.
+ * 服务端内存只和游标本身有关, 和结果集大小无关, 前提是iterator是惰性的.
+ * <p>
+ * 和{@code ManualFlowControlServer}一样, onReadyHandler和请求回调在同一个串行executor上执行, 这里不需要加锁.
+ *
+ * @author: hj
+ * @date: 26-10-17 下午2:05
+ */
+public class FlowControlledStreamer<T> implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(FlowControlledStreamer.class);
+
+    private final ServerCallStreamObserver<T> responseObserver;
+    private final Iterator<T> cursor;
+    private boolean completed = false;
+
+    private FlowControlledStreamer(ServerCallStreamObserver<T> responseObserver, Iterator<T> cursor) {
+        this.responseObserver = responseObserver;
+        this.cursor = cursor;
+    }
+
+    /**
+     * 把cursor中的结果按流控发送给responseObserver, 必须在服务方法返回之前调用.
+     */
+    public static <T> void stream(StreamObserver<T> responseObserver, Iterator<T> cursor) {
+        ServerCallStreamObserver<T> serverCallStreamObserver = (ServerCallStreamObserver<T>) responseObserver;
+        FlowControlledStreamer<T> streamer = new FlowControlledStreamer<>(serverCallStreamObserver, cursor);
+        serverCallStreamObserver.setOnCancelHandler(() -> logger.info("stream cancelled by client"));
+        serverCallStreamObserver.setOnReadyHandler(streamer);
+        // 如果传输层已经ready, 立即开始发送; 否则等待onReady
+        streamer.run();
+    }
+
+    @Override
+    public void run() {
+        if (completed) {
+            return;
+        }
+        while (responseObserver.isReady()) {
+            if (responseObserver.isCancelled()) {
+                completed = true;
+                return;
+            }
+            if (!cursor.hasNext()) {
+                completed = true;
+                responseObserver.onCompleted();
+                return;
+            }
+            responseObserver.onNext(cursor.next());
+        }
+        // 发送缓冲区已满, 等待下一次onReady从游标处继续
+    }
+}
@@ -0,0 +1,145 @@
+package com.sunshine.grpc.example.ordermanagement;
+
+import com.google.common.collect.Iterators;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 订单商品(items)的trigram倒排索引, 用来加速{@code searchOrders}的子串查询.
+ * <p>
+ * 每个商品名被切分成所有长度为3的子串(trigram), 每个trigram对应一个按订单id排序的posting集合.
+ * 查询串的所有trigram的posting集合的交集就是候选订单, 候选订单仍需要用{@link #matches(Order, String)}
+ * 做一次精确的子串校验(trigram都命中不代表整个查询串命中).
+ * <p>
+ * 作为{@link OrderStoreListener}注册到{@link OrderStore}上, 随写入增量维护.
+ *
+ * @author: hj
+ * @date: 26-10-17 上午11:10
+ */
+public class ItemIndex implements OrderStoreListener {
+    static final int GRAM = 3;
+
+    private final Map<String, Posting> postings = new ConcurrentHashMap<>();
+
+    @Override
+    public void onOrderWritten(Order previous, Order current) {
+        String id = current.getId();
+        Set<String> oldGrams = previous == null ? Collections.<String>emptySet() : grams(previous);
+        Set<String> newGrams = grams(current);
+        for (String gram : oldGrams) {
+            if (!newGrams.contains(gram)) {
+                Posting posting = postings.get(gram);
+                if (posting != null) {
+                    posting.remove(id);
+                }
+            }
+        }
+        for (String gram : newGrams) {
+            if (!oldGrams.contains(gram)) {
+                postings.computeIfAbsent(gram, k -> new Posting()).add(id);
+            }
+        }
+    }
+
+    /**
+     * 查询可能包含query的订单id, 按id升序惰性返回.
+     *
+     * @return 候选订单id; query短于一个trigram无法使用索引时返回null, 调用方需要退回到全量扫描
+     */
+    public Iterable<String> candidates(String query) {
+        return candidates(query, null);
+    }
+
+    /**
+     * 和{@link #candidates(String)}相同, 但是只返回id大于afterId的订单, 用于游标/分页续传
+     *
+     * @param afterId 为null时从头开始
+     */
+    public Iterable<String> candidates(String query, String afterId) {
+        if (query.length() < GRAM) {
+            return null;
+        }
+        List<Posting> sets = new ArrayList<>();
+        for (String gram : queryGrams(query)) {
+            Posting posting = postings.get(gram);
+            if (posting == null || posting.size() == 0) {
+                return Collections.emptyList();
+            }
+            sets.add(posting);
+        }
+        // 从最小的posting集合出发, 逐个检查是否在其他集合中
+        sets.sort(Comparator.comparingInt(Posting::size));
+        NavigableSet<String> smallest = sets.get(0).ids();
+        NavigableSet<String> driver = afterId == null ? smallest : smallest.tailSet(afterId, false);
+        List<Posting> others = sets.subList(1, sets.size());
+        return () -> Iterators.filter(driver.iterator(), id -> {
+            for (Posting other : others) {
+                if (!other.ids().contains(id)) {
+                    return false;
+                }
+            }
+            return true;
+        });
+    }
+
+    /**
+     * 候选订单数的上界(最小的posting集合的大小), 用于查询计划比较选择性
+     *
+     * @return query短于一个trigram无法使用索引时返回-1
+     */
+    public int estimate(String query) {
+        if (query.length() < GRAM) {
+            return -1;
+        }
+        int estimate = Integer.MAX_VALUE;
+        for (String gram : queryGrams(query)) {
+            Posting posting = postings.get(gram);
+            if (posting == null) {
+                return 0;
+            }
+            estimate = Math.min(estimate, posting.size());
+        }
+        return estimate;
+    }
+
+    /**
+     * 精确校验: 订单中是否有商品包含query子串
+     */
+    public static boolean matches(Order order, String query) {
+        int itemsCount = order.getItemsCount();
+        for (int idx = 0; idx < itemsCount; idx++) {
+            if (order.getItems(idx).contains(query)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Set<String> grams(Order order) {
+        Set<String> grams = new HashSet<>();
+        for (String item : order.getItemsList()) {
+            addGrams(item, grams);
+        }
+        return grams;
+    }
+
+    private static Set<String> queryGrams(String query) {
+        Set<String> grams = new HashSet<>();
+        addGrams(query, grams);
+        return grams;
+    }
+
+    private static void addGrams(String value, Set<String> grams) {
+        for (int i = 0; i + GRAM <= value.length(); i++) {
+            grams.add(value.substring(i, i + GRAM));
+        }
+    }
+}
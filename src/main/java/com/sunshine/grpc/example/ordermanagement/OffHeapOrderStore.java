@@ -0,0 +1,509 @@
+package com.sunshine.grpc.example.ordermanagement;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BinaryOperator;
+
+/**
+ * 把序列化后的订单保存在堆外(direct buffer)的订单存储, 堆上只有开放寻址的索引和id, 几百万订单也不会给老年代带来压力.
+ * <p>
+ * 存储按id的hash分成若干段(segment), 每段有自己的读写锁、索引和slab, 不同段的读写互不影响.
+ * 段内数据按追加的方式写入slab, 每条记录为 {@code [int idLength][id bytes][int orderLength][order bytes]},
+ * 地址是 {@code slab下标 << 32 | 偏移}. 索引是两个并行的原始数组: id的hash和记录地址, 线性探测, 装载因子超过0.5时扩容.
+ * <p>
+ * 写入时先在读锁下取出旧记录, 在锁外解析旧订单、分配版本并序列化新订单, 写锁内只检查旧记录没有变化、追加和修改索引;
+ * 期间被并发修改就重试, 连续冲突几次后退回到在写锁内完成全部工作. 写入回调在段的写锁内调用, 同一个订单的回调是串行的.
+ * <p>
+ * 更新订单时追加一条新记录并修改索引中的地址, 旧记录(以及换slab时旧slab末尾用不上的部分)成为垃圾.
+ * 一段中的垃圾超过存活数据并且不少于{@link #INITIAL_SLAB_BYTES}时, 在这一段的写锁内把存活的记录复制到新的slab(压缩),
+ * 旧的slab交给GC: {@link #getSerialized(String)}返回的切片引用着所在的slab, 传输层还在读的slab不会被释放.
+ * 所以堆外内存最多是存活数据的两倍左右, {@link #liveBytes()}/{@link #deadBytes()}/{@link #compactions()}可以用来观察.
+ * <p>
+ * 为了按id顺序遍历和分页({@link #ordersAfter(String)}), 堆上另外有一个所有id的跳表, 每个订单只多一个id字符串和一个跳表节点;
+ * 订单在第一次写入时加入, 分页续传从afterId处开始, 不需要每次收集和排序所有的id.
+ *
+ * @author: hj
+ * @date: 26-10-18 下午2:10
+ */
+public class OffHeapOrderStore implements OrderStore {
+    private static final int DEFAULT_SLAB_BYTES = 64 * 1024 * 1024;
+    private static final int DEFAULT_SEGMENTS = 16;
+    // 每段的第一个slab, 之后翻倍直到slabBytes, 订单少的段不会占用整块slab
+    private static final int INITIAL_SLAB_BYTES = 64 * 1024;
+    // 锁外解析期间旧记录被修改的次数超过这个值, 就在写锁内完成
+    private static final int MAX_OPTIMISTIC_ATTEMPTS = 3;
+    private static final long EMPTY = -1L;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    // 所有订单的id, 升序; 订单不会被删除, 只增不减
+    private final NavigableSet<String> ids = new ConcurrentSkipListSet<>();
+    private final List<OrderStoreListener> listeners = new CopyOnWriteArrayList<>();
+
+    public OffHeapOrderStore() {
+        this(DEFAULT_SLAB_BYTES);
+    }
+
+    public OffHeapOrderStore(int slabBytes) {
+        this(slabBytes, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param segments 段数, 必须是2的幂
+     */
+    public OffHeapOrderStore(int slabBytes, int segments) {
+        if (segments <= 0 || Integer.bitCount(segments) != 1) {
+            throw new IllegalArgumentException("segments must be a power of two, got " + segments);
+        }
+        this.segments = new Segment[segments];
+        for (int i = 0; i < segments; i++) {
+            this.segments[i] = new Segment(slabBytes, ids);
+        }
+        // 段用hash的高位选择, 段内的索引用低位
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(segments);
+    }
+
+    @Override
+    public Order get(String id) {
+        ByteBuffer serialized = getSerialized(id);
+        return serialized == null ? null : parse(serialized);
+    }
+
+    /**
+     * 直接返回堆外保存的序列化订单, 不需要解析; 返回的是只读切片, 在存储的整个生命周期内有效
+     */
+    @Override
+    public ByteBuffer getSerialized(String id) {
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+        return segmentFor(hash).serialized(key, hash);
+    }
+
+    @Override
+    public List<Order> getAll(List<String> ids) {
+        List<Order> result = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            result.add(get(id));
+        }
+        return result;
+    }
+
+    @Override
+    public Order put(Order order) {
+        return write(order, OrderStore::nextVersion).previous;
+    }
+
+    @Override
+    public boolean restore(Order order) {
+        return write(order, OrderStore::restoredVersion).current != null;
+    }
+
+    @Override
+    public Order compareAndSet(Order order, long expectedVersion) {
+        return write(order, (o, previous) -> (previous == null ? 0 : previous.getVersion()) == expectedVersion
+                ? OrderStore.nextVersion(o, previous) : null).current;
+    }
+
+    /**
+     * @param next 根据旧订单算出要写入的订单, 返回null表示不写入; 冲突时会被再次调用
+     */
+    private Written write(Order order, BinaryOperator<Order> next) {
+        byte[] key = order.getId().getBytes(StandardCharsets.UTF_8);
+        int hash = hash(key);
+        return segmentFor(hash).write(key, hash, order, next, listeners);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    @Override
+    public Iterable<Order> orders() {
+        return ordersAfter(null);
+    }
+
+    @Override
+    public Iterable<Order> ordersAfter(String afterId) {
+        // 跳表的视图是弱一致的, 遍历期间新增的订单可能出现也可能不出现
+        NavigableSet<String> tail = afterId == null ? ids : ids.tailSet(afterId, false);
+        return () -> new Iterator<Order>() {
+            private final Iterator<String> idIterator = tail.iterator();
+            private Order next = advance();
+
+            private Order advance() {
+                while (idIterator.hasNext()) {
+                    Order order = get(idIterator.next());
+                    if (order != null) {
+                        return order;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Order next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Order current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+
+    @Override
+    public void addListener(OrderStoreListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return 当前版本的订单记录占用的堆外字节数
+     */
+    public long liveBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.stats()[0];
+        }
+        return bytes;
+    }
+
+    /**
+     * @return 被覆盖的旧记录和slab末尾用不上的部分, 等待压缩回收的字节数
+     */
+    public long deadBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.stats()[1];
+        }
+        return bytes;
+    }
+
+    /**
+     * @return 所有段累计的压缩次数
+     */
+    public long compactions() {
+        long count = 0;
+        for (Segment segment : segments) {
+            count += segment.stats()[2];
+        }
+        return count;
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[segments.length == 1 ? 0 : hash >>> segmentShift];
+    }
+
+    private static int hash(byte[] key) {
+        int h = Arrays.hashCode(key);
+        // 打散低位, 减少线性探测的聚集
+        return h ^ (h >>> 16);
+    }
+
+    private static Order parse(ByteBuffer serialized) {
+        try {
+            return Order.parseFrom(serialized.duplicate());
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalStateException("corrupted off-heap order record", e);
+        }
+    }
+
+    private static final class Written {
+        // 写入前的订单, 不存在时为null
+        final Order previous;
+        // 写入的订单, 没有写入时为null
+        final Order current;
+
+        Written(Order previous, Order current) {
+            this.previous = previous;
+            this.current = current;
+        }
+    }
+
+    /**
+     * 一段: 自己的读写锁、开放寻址索引和slab
+     */
+    private static final class Segment {
+        private final int slabBytes;
+        private final NavigableSet<String> ids;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private final List<ByteBuffer> slabs = new ArrayList<>();
+
+        // 开放寻址索引, 长度总是2的幂
+        private int[] hashes = new int[64];
+        private long[] addresses = newAddresses(64);
+        private int size = 0;
+        private long liveBytes = 0;
+        private long deadBytes = 0;
+        private long compactions = 0;
+        // 每次压缩加一, 压缩之后地址会被重新使用, 锁外解析的写入要同时检查地址和epoch
+        private long epoch = 0;
+
+        Segment(int slabBytes, NavigableSet<String> ids) {
+            this.slabBytes = slabBytes;
+            this.ids = ids;
+        }
+
+        ByteBuffer serialized(byte[] key, int hash) {
+            lock.readLock().lock();
+            try {
+                long address = addresses[find(key, hash)];
+                return address == EMPTY ? null : orderBytes(address);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        Written write(byte[] key, int hash, Order order, BinaryOperator<Order> next,
+                      List<OrderStoreListener> listeners) {
+            for (int attempt = 0; ; attempt++) {
+                boolean optimistic = attempt < MAX_OPTIMISTIC_ATTEMPTS;
+                long seen = EMPTY;
+                long seenEpoch = 0;
+                Order previous = null;
+                Order current = null;
+                byte[] value = null;
+                if (optimistic) {
+                    ByteBuffer previousBytes;
+                    lock.readLock().lock();
+                    try {
+                        seen = addresses[find(key, hash)];
+                        seenEpoch = epoch;
+                        previousBytes = seen == EMPTY ? null : orderBytes(seen);
+                    } finally {
+                        lock.readLock().unlock();
+                    }
+                    // 解析、分配版本和序列化都在锁外
+                    previous = previousBytes == null ? null : parse(previousBytes);
+                    current = next.apply(order, previous);
+                    if (current == null) {
+                        return new Written(previous, null);
+                    }
+                    value = current.toByteArray();
+                }
+                lock.writeLock().lock();
+                try {
+                    int slot = find(key, hash);
+                    long address = addresses[slot];
+                    if (optimistic && (address != seen || epoch != seenEpoch)) {
+                        // 锁外解析期间被并发修改了, 重试
+                        continue;
+                    }
+                    if (!optimistic) {
+                        previous = address == EMPTY ? null : parse(orderBytes(address));
+                        current = next.apply(order, previous);
+                        if (current == null) {
+                            return new Written(previous, null);
+                        }
+                        value = current.toByteArray();
+                    }
+                    install(slot, key, hash, value, address);
+                    if (address == EMPTY) {
+                        ids.add(order.getId());
+                    }
+                    for (OrderStoreListener listener : listeners) {
+                        listener.onOrderWritten(previous, current);
+                    }
+                    return new Written(previous, current);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }
+
+        int size() {
+            lock.readLock().lock();
+            try {
+                return size;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        long[] stats() {
+            lock.readLock().lock();
+            try {
+                return new long[]{liveBytes, deadBytes, compactions};
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // ------------------------------------------------------------ 索引, 必须持有锁
+
+        // 必须持有写锁
+        private void install(int slot, byte[] key, int hash, byte[] value, long previousAddress) {
+            long address = append(key, value);
+            addresses[slot] = address;
+            liveBytes += recordBytes(key.length, value.length);
+            if (previousAddress == EMPTY) {
+                hashes[slot] = hash;
+                size++;
+                if (size * 2 > addresses.length) {
+                    resize();
+                }
+            } else {
+                long dead = recordBytes(previousAddress);
+                liveBytes -= dead;
+                deadBytes += dead;
+                if (deadBytes > liveBytes && deadBytes >= INITIAL_SLAB_BYTES) {
+                    compact();
+                }
+            }
+        }
+
+        /**
+         * 把存活的记录依次复制到新的slab, 索引的槽位不变, 只修改地址
+         */
+        private void compact() {
+            List<ByteBuffer> oldSlabs = new ArrayList<>(slabs);
+            slabs.clear();
+            // 新的slab按存活数据的大小分配, 不超过slabBytes
+            ByteBuffer slab = null;
+            for (int slot = 0; slot < addresses.length; slot++) {
+                long address = addresses[slot];
+                if (address == EMPTY) {
+                    continue;
+                }
+                ByteBuffer record = oldSlabs.get((int) (address >>> 32)).duplicate();
+                record.position((int) address);
+                int length = recordBytes(address, oldSlabs);
+                record.limit(record.position() + length);
+                if (slab == null || slab.remaining() < length) {
+                    slab = ByteBuffer.allocateDirect((int) Math.min(Math.max(liveBytes, length), slabBytes));
+                    slabs.add(slab);
+                }
+                addresses[slot] = ((long) (slabs.size() - 1) << 32) | slab.position();
+                slab.put(record);
+            }
+            // 换slab时丢掉的末尾不算, 之后追加的记录会从最后一个slab的剩余空间开始
+            deadBytes = 0;
+            compactions++;
+            epoch++;
+        }
+
+        /**
+         * @return key所在的槽位, 不存在时返回应该插入的空槽位
+         */
+        private int find(byte[] key, int hash) {
+            int mask = addresses.length - 1;
+            int slot = hash & mask;
+            while (addresses[slot] != EMPTY) {
+                if (hashes[slot] == hash && idEquals(addresses[slot], key)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void resize() {
+            int[] oldHashes = hashes;
+            long[] oldAddresses = addresses;
+            hashes = new int[oldHashes.length * 2];
+            addresses = newAddresses(oldAddresses.length * 2);
+            int mask = addresses.length - 1;
+            for (int i = 0; i < oldAddresses.length; i++) {
+                if (oldAddresses[i] != EMPTY) {
+                    int slot = oldHashes[i] & mask;
+                    while (addresses[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    hashes[slot] = oldHashes[i];
+                    addresses[slot] = oldAddresses[i];
+                }
+            }
+        }
+
+        private static long[] newAddresses(int length) {
+            long[] table = new long[length];
+            Arrays.fill(table, EMPTY);
+            return table;
+        }
+
+        // ------------------------------------------------------------ slab
+
+        private long append(byte[] key, byte[] value) {
+            int required = recordBytes(key.length, value.length);
+            if (required > slabBytes) {
+                throw new IllegalArgumentException("order is larger than a slab: " + required + " bytes");
+            }
+            ByteBuffer slab = slabs.isEmpty() ? null : slabs.get(slabs.size() - 1);
+            if (slab == null || slab.remaining() < required) {
+                if (slab != null) {
+                    // 旧slab末尾放不下这条记录的部分永远用不上了
+                    deadBytes += slab.remaining();
+                }
+                int capacity = slab == null ? INITIAL_SLAB_BYTES : (int) Math.min(slab.capacity() * 2L, slabBytes);
+                slab = ByteBuffer.allocateDirect(Math.max(Math.min(capacity, slabBytes), required));
+                slabs.add(slab);
+            }
+            long address = ((long) (slabs.size() - 1) << 32) | slab.position();
+            slab.putInt(key.length).put(key).putInt(value.length).put(value);
+            return address;
+        }
+
+        private static int recordBytes(int keyLength, int valueLength) {
+            return 8 + keyLength + valueLength;
+        }
+
+        private int recordBytes(long address) {
+            return recordBytes(address, slabs);
+        }
+
+        private static int recordBytes(long address, List<ByteBuffer> slabs) {
+            ByteBuffer slab = slabs.get((int) (address >>> 32));
+            int keyLength = slab.getInt((int) address);
+            return recordBytes(keyLength, slab.getInt((int) address + 4 + keyLength));
+        }
+
+        private ByteBuffer record(long address) {
+            ByteBuffer record = slabs.get((int) (address >>> 32)).duplicate();
+            record.position((int) address);
+            return record;
+        }
+
+        private boolean idEquals(long address, byte[] key) {
+            ByteBuffer record = record(address);
+            if (record.getInt() != key.length) {
+                return false;
+            }
+            for (byte b : key) {
+                if (record.get() != b) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private ByteBuffer orderBytes(long address) {
+            ByteBuffer record = record(address);
+            record.position(record.position() + 4 + record.getInt());
+            int length = record.getInt();
+            record.limit(record.position() + length);
+            return record.slice().asReadOnlyBuffer();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.sunshine.grpc.example.ordermanagement;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 订单的变更流, 为watchOrders提供数据.
+ * <p>
+ * 作为{@link OrderStoreListener}注册到{@link OrderStore}上, 每次写入分配一个递增的序号, 保存在固定容量的环形缓冲区里,
+ * 只保留最近capacity个变更. 所有watcher共享这一个缓冲区, 每个watcher只有一个"下一个序号"的游标,
+ * 服务端不会为慢的watcher额外缓存任何数据: watcher落后超过capacity时它要的变更已经被覆盖,
+ * 这时发送一个RESYNC, 客户端重新读取全量数据后从RESYNC的序号继续接收.
+ * <p>
+ * 写入回调在存储的写锁内执行, 所以这里不加全局锁: 序号由AtomicLong分配, 变更通过对槽位的一次CAS(volatile写)发布;
+ * watcher无锁读取槽位, 用变更自带的序号判断它是否已经发布(槽位中还是更早的变更)或者已经被覆盖(槽位中是更新的变更).
+ * 序号比发布的顺序先分配, watcher在还没发布的序号处停下, 由发布它的写入再次通知, 不会跳过任何变更.
+ * <p>
+ * 发送在executor上进行, 不占用写入线程; 每个watcher的发送是串行的, 并且只在{@link ServerCallStreamObserver#isReady()}时发送,
+ * 发送缓冲区满了就停下来, 由onReadyHandler继续.
+ * <p>
+ * 序号只在进程内有效, 服务重启后从1开始.
+ *
+ * @author: hj
+ * @date: 26-10-19 上午10:15
+ */
+public class OrderChangeFeed implements OrderStoreListener {
+    private static final Logger logger = LoggerFactory.getLogger(OrderChangeFeed.class);
+    public static final int DEFAULT_CAPACITY = 4096;
+    // 每次最多读取的变更数
+    private static final int READ_BATCH = 64;
+
+    private final Executor executor;
+    private final Set<Watcher> watchers = ConcurrentHashMap.newKeySet();
+
+    // 序号为seq的变更保存在ring[(seq - 1) % capacity]
+    private final AtomicReferenceArray<OrderChange> ring;
+    // 已经分配的最大序号, 对应的变更可能还没有发布到ring
+    private final AtomicLong lastSequence = new AtomicLong();
+
+    public OrderChangeFeed(int capacity, Executor executor) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.ring = new AtomicReferenceArray<>(capacity);
+        this.executor = executor;
+    }
+
+    @Override
+    public void onOrderWritten(Order previous, Order current) {
+        long sequence = lastSequence.incrementAndGet();
+        OrderChange change = OrderChange.newBuilder()
+                                        .setType(OrderChange.Type.UPSERT)
+                                        .setSequence(sequence)
+                                        .setOrder(current)
+                                        .build();
+        int slot = slot(sequence);
+        OrderChange existing;
+        do {
+            existing = ring.get(slot);
+            if (existing != null && existing.getSequence() > sequence) {
+                // 落后了一整圈的写入, 槽位已经被更新的变更占用, 这个变更本来就会被覆盖
+                break;
+            }
+        } while (!ring.compareAndSet(slot, existing, change));
+        for (Watcher watcher : watchers) {
+            watcher.signal();
+        }
+    }
+
+    /**
+     * 开始把afterSequence之后的变更发送给responseObserver, 必须在服务方法返回之前调用.
+     *
+     * @param afterSequence 为0时只发送订阅之后的变更
+     */
+    public void watch(long afterSequence, StreamObserver<OrderChange> responseObserver) {
+        ServerCallStreamObserver<OrderChange> observer = (ServerCallStreamObserver<OrderChange>) responseObserver;
+        Watcher watcher = new Watcher(observer, afterSequence == 0 ? lastSequence() + 1 : afterSequence + 1);
+        observer.setOnCancelHandler(() -> {
+            watchers.remove(watcher);
+            logger.info("order watcher cancelled at sequence {}", watcher.nextSequence);
+        });
+        observer.setOnReadyHandler(watcher::signal);
+        watchers.add(watcher);
+        watcher.signal();
+    }
+
+    public long lastSequence() {
+        return lastSequence.get();
+    }
+
+    private int slot(long sequence) {
+        return (int) ((sequence - 1) % ring.length());
+    }
+
+    /**
+     * 读取从nextSequence开始的最多max个连续的、已经发布的变更
+     *
+     * @return nextSequence已经被覆盖(或者不是这个进程分配的)时返回null
+     */
+    private List<OrderChange> read(long nextSequence, int max) {
+        if (nextSequence < 1 || nextSequence > lastSequence.get() + 1) {
+            return null;
+        }
+        List<OrderChange> changes = new ArrayList<>();
+        for (long sequence = nextSequence; changes.size() < max; sequence++) {
+            OrderChange change = ring.get(slot(sequence));
+            if (change == null || change.getSequence() < sequence) {
+                // 还没有发布
+                break;
+            }
+            if (change.getSequence() > sequence) {
+                // 已经被覆盖, 先返回读到的部分, 下次读取时再RESYNC
+                return changes.isEmpty() ? null : changes;
+            }
+            changes.add(change);
+        }
+        return changes;
+    }
+
+    private class Watcher {
+        private final ServerCallStreamObserver<OrderChange> observer;
+        // 同一个watcher的drain串行执行
+        private final Executor sequential = MoreExecutors.newSequentialExecutor(executor);
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // 只在sequential上访问
+        private long nextSequence;
+
+        Watcher(ServerCallStreamObserver<OrderChange> observer, long nextSequence) {
+            this.observer = observer;
+            this.nextSequence = nextSequence;
+        }
+
+        void signal() {
+            // 合并重复的通知, 已经排队的drain会看到最新的变更
+            if (scheduled.compareAndSet(false, true)) {
+                sequential.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            scheduled.set(false);
+            while (!observer.isCancelled() && observer.isReady()) {
+                List<OrderChange> changes = read(nextSequence, READ_BATCH);
+                if (changes == null) {
+                    long resyncSequence = lastSequence();
+                    logger.info("order watcher fell behind at sequence {}, resync from {}", nextSequence,
+                            resyncSequence);
+                    observer.onNext(OrderChange.newBuilder()
+                                               .setType(OrderChange.Type.RESYNC)
+                                               .setSequence(resyncSequence)
+                                               .build());
+                    nextSequence = resyncSequence + 1;
+                    continue;
+                }
+                if (changes.isEmpty()) {
+                    return;
+                }
+                for (OrderChange change : changes) {
+                    if (!observer.isReady()) {
+                        // 剩下的变更下次onReady时重新读取
+                        return;
+                    }
+                    observer.onNext(change);
+                    nextSequence = change.getSequence() + 1;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.sunshine.grpc.example.ordermanagement;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.Function;
+
+/**
+ * getOrdersStream一次调用的请求处理, 每个请求对应一个响应.
+ * <p>
+ * 关闭自动request, 每次只读取一个请求: 响应发送之后isReady仍为true才读取下一个, 否则等onReady.
+ * 客户端不读取响应时服务端不再查询, 也不会缓冲越来越多的响应; 单个请求的id数由lookup限制.
+ * <p>
+ * 和{@link FlowControlledStreamer}一样, onReadyHandler和请求回调在同一个串行executor上执行, 这里不需要加锁.
+ *
+ * @author: hj
+ * @date: 26-10-19 下午3:40
+ */
+class OrderLookupStream implements StreamObserver<GetOrdersRequest>, Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(OrderLookupStream.class);
+
+    private final Function<GetOrdersRequest, GetOrdersResponse> lookup;
+    private final ServerCallStreamObserver<GetOrdersResponse> responseObserver;
+    private boolean waitingForReady = false;
+    private boolean closed = false;
+
+    /**
+     * 必须在服务方法返回之前构造, 否则关闭自动request不生效
+     *
+     * @param lookup id数超过上限时抛出{@link io.grpc.StatusRuntimeException}
+     */
+    OrderLookupStream(Function<GetOrdersRequest, GetOrdersResponse> lookup,
+                      StreamObserver<GetOrdersResponse> responseObserver) {
+        this.lookup = lookup;
+        this.responseObserver = (ServerCallStreamObserver<GetOrdersResponse>) responseObserver;
+        this.responseObserver.disableAutoRequest();
+        this.responseObserver.setOnReadyHandler(this);
+        this.responseObserver.request(1);
+    }
+
+    @Override
+    public void onNext(GetOrdersRequest request) {
+        if (closed) {
+            return;
+        }
+        GetOrdersResponse response;
+        try {
+            response = lookup.apply(request);
+        } catch (RuntimeException e) {
+            closed = true;
+            responseObserver.onError(Status.fromThrowable(e).asRuntimeException());
+            return;
+        }
+        responseObserver.onNext(response);
+        if (responseObserver.isReady()) {
+            responseObserver.request(1);
+        } else {
+            waitingForReady = true;
+        }
+    }
+
+    // onReady: 上一个响应已经被传输层接收, 读取下一个请求
+    @Override
+    public void run() {
+        if (waitingForReady && !closed && responseObserver.isReady()) {
+            waitingForReady = false;
+            responseObserver.request(1);
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        logger.info("get orders stream error: {}", t.getMessage());
+        closed = true;
+    }
+
+    @Override
+    public void onCompleted() {
+        if (!closed) {
+            closed = true;
+            responseObserver.onCompleted();
+        }
+    }
+}
@@ -156,6 +156,13 @@ public class OrderManagementClient {
         Order resultOrder = client.blockingStub.getOrder(request);
         logger.info("get order: {}", resultOrder.toString());
 
+        // get Orders in one call, misses are reported inline
+        GetOrdersResponse lookups = client.blockingStub.getOrders(
+                GetOrdersRequest.newBuilder().addIds("101").addIds("102").addIds("999").build());
+        for (OrderLookup lookup : lookups.getResultsList()) {
+            logger.info("get orders: id={}, found={}", lookup.getId(), lookup.getFound());
+        }
+
         // Search orders
         StringValue stringValue = StringValue.newBuilder().setValue("Google").build();
         Iterator<Order> orderIterator = client.blockingStub.searchOrders(stringValue);
@@ -166,6 +173,14 @@ public class OrderManagementClient {
                     + matchingOrder.toString());
         }
 
+        // Search orders page by page
+        SearchOrdersRequest.Builder pageRequest = SearchOrdersRequest.newBuilder().setQuery("Google").setPageSize(1);
+        do {
+            SearchOrdersResponse page = client.blockingStub.searchOrdersPaged(pageRequest.build());
+            logger.info("Search Order Page -> {} orders", page.getOrdersCount());
+            pageRequest.setPageToken(page.getNextPageToken());
+        } while (!pageRequest.getPageToken().isEmpty());
+
         invokerOrderUpdate(client.asyncStub);
         invokeOrderProcess(client.asyncStub);
     }
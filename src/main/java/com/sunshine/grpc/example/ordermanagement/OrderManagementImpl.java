@@ -1,16 +1,26 @@
 package com.sunshine.grpc.example.ordermanagement;
 
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.StringValue;
+import com.sunshine.grpc.example.marshaller.SerializedResponses;
+import io.grpc.ServerServiceDefinition;
 import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.AbstractMap;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Random;
-import java.util.stream.Collectors;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
 /**
@@ -53,33 +63,110 @@ public class OrderManagementImpl extends OrderManagementGrpc.OrderManagementImpl
                               .setPrice(300)
                               .build();
 
-    // 生成一些静态的订单的信息
-    private Map<String, Order> orderCaches = Stream.of(new AbstractMap.SimpleEntry<>(ord1.getId(), ord1),
-            new AbstractMap.SimpleEntry<>(ord2.getId(), ord2),
-            new AbstractMap.SimpleEntry<>(ord3.getId(), ord3),
-            new AbstractMap.SimpleEntry<>(ord4.getId(), ord4),
-            new AbstractMap.SimpleEntry<>(ord5.getId(), ord5))
-                                                   .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    // 订单存储, 会被多个gRPC executor线程并发读写
+    private final OrderStore orderStore;
+    private final OrderWriteAheadLog orderLog;
+    // processOrders的批处理配置和定时刷新用的线程, 所有调用共享
+    private final ShipmentBatchConfig batchConfig;
+    private final ScheduledExecutorService batchScheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("shipment-batcher-%d").build());
+    // 分区合并的工作线程, 只有lanes大于1时才创建
+    private final ExecutorService laneWorkers;
+    // 商品的倒排索引, 随orderStore的写入增量维护; 三个索引都在堆上, 不建索引时为null, 查询退回全量扫描
+    private final ItemIndex itemIndex;
+    // 目的地的二级索引
+    private final DestinationIndex destinationIndex;
+    // 价格的有序索引
+    private final PriceIndex priceIndex;
+    private final OrderQueryEngine queryEngine;
+    // 订单的变更流, watcher的发送在watchWorkers上进行
+    private final ExecutorService watchWorkers = Executors.newFixedThreadPool(2,
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("order-watch-%d").build());
+    private final OrderChangeFeed changeFeed = new OrderChangeFeed(
+            Integer.getInteger("order.watch.capacity", OrderChangeFeed.DEFAULT_CAPACITY), watchWorkers);
 
+    public OrderManagementImpl() {
+        this(new ConcurrentOrderStore(), ShipmentBatchConfig.fromSystemProperties());
+        // 生成一些静态的订单的信息
+        Stream.of(ord1, ord2, ord3, ord4, ord5).forEach(orderStore::put);
+    }
+
+    public OrderManagementImpl(OrderStore orderStore, ShipmentBatchConfig batchConfig) {
+        this(orderStore, batchConfig, null);
+    }
 
-    private Map<String, CombinedShipment> combinedShipmentMap = new HashMap<>();
+    /**
+     * @param orderLog orderStore的预写日志, 为null时订单只保存在内存中
+     */
+    public OrderManagementImpl(OrderStore orderStore, ShipmentBatchConfig batchConfig, OrderWriteAheadLog orderLog) {
+        this(orderStore, batchConfig, orderLog, true);
+    }
+
+    /**
+     * @param indexed 是否在堆上维护商品/目的地/价格索引. 索引的大小和订单数成正比,
+     *                订单放在堆外({@link OffHeapOrderStore})时通常不建索引, 查询改为全量扫描存储
+     */
+    public OrderManagementImpl(OrderStore orderStore, ShipmentBatchConfig batchConfig, OrderWriteAheadLog orderLog,
+                               boolean indexed) {
+        this.orderStore = orderStore;
+        this.orderLog = orderLog;
+        this.batchConfig = batchConfig;
+        this.laneWorkers = batchConfig.getLanes() > 1 ? Executors.newFixedThreadPool(batchConfig.getLanes(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("shipment-lane-%d").build()) : null;
+        this.itemIndex = indexed ? new ItemIndex() : null;
+        this.destinationIndex = indexed ? new DestinationIndex() : null;
+        this.priceIndex = indexed ? new PriceIndex() : null;
+        if (indexed) {
+            List<OrderStoreListener> indexes = Arrays.asList(itemIndex, destinationIndex, priceIndex);
+            for (OrderStoreListener index : indexes) {
+                orderStore.addListener(index);
+            }
+            for (Order order : orderStore.orders()) {
+                for (OrderStoreListener index : indexes) {
+                    index.onOrderWritten(null, order);
+                }
+            }
+        }
+        this.queryEngine = new OrderQueryEngine(orderStore, itemIndex, destinationIndex, priceIndex);
+        // 变更流只关心之后的写入, 不需要回填
+        orderStore.addListener(changeFeed);
+    }
 
+    /**
+     * 配置了预写日志时, 等之前的写入都刷盘后再回复, 等待期间不占用gRPC线程
+     */
+    private <T> void replyWhenDurable(T reply, StreamObserver<T> responseObserver) {
+        if (orderLog == null) {
+            responseObserver.onNext(reply);
+            responseObserver.onCompleted();
+            return;
+        }
+        orderLog.sync().whenComplete((ignored, t) -> {
+            if (t != null) {
+                responseObserver.onError(Status.UNAVAILABLE.withDescription("failed to persist order")
+                                                           .withCause(t)
+                                                           .asRuntimeException());
+            } else {
+                responseObserver.onNext(reply);
+                responseObserver.onCompleted();
+            }
+        });
+    }
 
     // unary
     @Override
     public void addOrder(Order request, StreamObserver<StringValue> responseObserver) {
         logger.info("Order Added  ID: {}, , Destination : {}", request.getId(), request.getDestination());
-        orderCaches.put(request.getId(), request);
+        orderStore.put(request);
         StringValue value = StringValue.newBuilder().setValue("1000500").build();
-        responseObserver.onNext(value);
-        responseObserver.onCompleted();
+        replyWhenDurable(value, responseObserver);
     }
 
     // unary
     @Override
     public void getOrder(StringValue request, StreamObserver<Order> responseObserver) {
         String idValue = request.getValue();
-        Order order = orderCaches.get(idValue);
+        Order order = orderStore.get(idValue);
         if (order != null) {
             logger.info("Order retrieved: ID=[{}]", order.getId());
             responseObserver.onNext(order);
@@ -90,36 +177,190 @@ public class OrderManagementImpl extends OrderManagementGrpc.OrderManagementImpl
         }
     }
 
+    /**
+     * getOrder的零拷贝版本: 直接返回orderStore中保存的序列化字节, 不需要解析和重新编码,
+     * 通过{@link #bindSerializedService()}注册
+     */
+    public void getOrderSerialized(StringValue request, StreamObserver<ByteBuffer> responseObserver) {
+        ByteBuffer order = orderStore.getSerialized(request.getValue());
+        if (order != null) {
+            responseObserver.onNext(order);
+            responseObserver.onCompleted();
+        } else {
+            logger.info("Order, id={}, not found.", request.getValue());
+            responseObserver.onError(Status.NOT_FOUND.asRuntimeException());
+        }
+    }
+
+    /**
+     * 和{@link #bindService()}相同, 但是getOrder由{@link #getOrderSerialized}处理
+     */
+    public ServerServiceDefinition bindSerializedService() {
+        return SerializedResponses.replaceUnary(bindService(), OrderManagementGrpc.getGetOrderMethod(),
+                this::getOrderSerialized);
+    }
+
+    // unary, 批量获取
+    @Override
+    public void getOrders(GetOrdersRequest request, StreamObserver<GetOrdersResponse> responseObserver) {
+        GetOrdersResponse response;
+        try {
+            response = lookupOrders(request);
+        } catch (StatusRuntimeException e) {
+            responseObserver.onError(e);
+            return;
+        }
+        responseObserver.onNext(response);
+        responseObserver.onCompleted();
+    }
+
+    // Bi-di Streaming, 每个请求对应一个响应, 按客户端读取响应的速度读取请求
+    @Override
+    public StreamObserver<GetOrdersRequest> getOrdersStream(StreamObserver<GetOrdersResponse> responseObserver) {
+        return new OrderLookupStream(this::lookupOrders, responseObserver);
+    }
+
+    // getOrders/getOrdersStream单个请求最多的订单id数, 限制单个响应的大小
+    static final int MAX_IDS_PER_REQUEST = 1000;
+
+    private GetOrdersResponse lookupOrders(GetOrdersRequest request) {
+        List<String> ids = request.getIdsList();
+        if (ids.size() > MAX_IDS_PER_REQUEST) {
+            throw Status.INVALID_ARGUMENT.withDescription(
+                    ids.size() + " ids requested, at most " + MAX_IDS_PER_REQUEST + " per request").asRuntimeException();
+        }
+        List<Order> orders = orderStore.getAll(ids);
+        GetOrdersResponse.Builder response = GetOrdersResponse.newBuilder();
+        for (int i = 0; i < ids.size(); i++) {
+            OrderLookup.Builder lookup = response.addResultsBuilder().setId(ids.get(i));
+            Order order = orders.get(i);
+            if (order != null) {
+                lookup.setFound(true).setOrder(order);
+            }
+        }
+        return response.build();
+    }
+
     // Server Streaming
     @Override
     public void searchOrders(StringValue request, StreamObserver<Order> responseObserver) {
-        for (Map.Entry<String, Order> orderEntry : orderCaches.entrySet()) {
-            Order order = orderEntry.getValue();
-            int itemsCount = order.getItemsCount();
-            for (int idx = 0; idx < itemsCount; idx++) {
-                String item = order.getItems(idx);
-                if (item.contains(request.getValue())) {
-                    logger.info("item found , {}", item);
-                    responseObserver.onNext(order);
-                    break;
-                }
-            }
+        FlowControlledStreamer.stream(responseObserver, searchCursor(request.getValue(), null));
+    }
+
+    // Server Streaming, 某个目的地的所有订单, 按订单id升序
+    @Override
+    public void listOrdersByDestination(StringValue request, StreamObserver<Order> responseObserver) {
+        String destination = request.getValue();
+        Iterator<Order> orders = destinationIndex == null ? orderStore.orders().iterator()
+                : Iterators.transform(destinationIndex.orderIds(destination).iterator(), orderStore::get);
+        // 索引和读取之间订单可能被修改, 再校验一次目的地
+        FlowControlledStreamer.stream(responseObserver,
+                Iterators.filter(orders, order -> order != null && order.getDestination().equals(destination)));
+    }
+
+    // Server Streaming, 多条件查询
+    @Override
+    public void queryOrders(OrderQuery request, StreamObserver<Order> responseObserver) {
+        if (request.hasMinPrice() && request.hasMaxPrice()
+                && request.getMinPrice().getValue() > request.getMaxPrice().getValue()) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("min_price > max_price")
+                                                            .asRuntimeException());
+            return;
+        }
+        FlowControlledStreamer.stream(responseObserver, queryEngine.execute(request));
+    }
+
+    // Server Streaming, 订阅订单的变更
+    @Override
+    public void watchOrders(WatchOrdersRequest request, StreamObserver<OrderChange> responseObserver) {
+        if (request.getAfterSequence() < 0) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("after_sequence must not be negative")
+                                                            .asRuntimeException());
+            return;
+        }
+        changeFeed.watch(request.getAfterSequence(), responseObserver);
+    }
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    // unary, 分页查询
+    @Override
+    public void searchOrdersPaged(SearchOrdersRequest request, StreamObserver<SearchOrdersResponse> responseObserver) {
+        String afterId;
+        try {
+            afterId = decodePageToken(request.getPageToken());
+        } catch (IllegalArgumentException e) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("invalid page_token")
+                                                            .asRuntimeException());
+            return;
+        }
+        int pageSize = request.getPageSize() <= 0 ? DEFAULT_PAGE_SIZE
+                : Math.min(request.getPageSize(), MAX_PAGE_SIZE);
+
+        // 游标是惰性的, 取满一页就停止, 不会计算后面的结果
+        Iterator<Order> cursor = searchCursor(request.getQuery(), afterId);
+        SearchOrdersResponse.Builder response = SearchOrdersResponse.newBuilder();
+        String lastId = null;
+        while (response.getOrdersCount() < pageSize && cursor.hasNext()) {
+            Order order = cursor.next();
+            response.addOrders(order);
+            lastId = order.getId();
+        }
+        // 取满一页就认为可能还有下一页, 最后一页可能是空的
+        if (response.getOrdersCount() == pageSize) {
+            response.setNextPageToken(encodePageToken(lastId));
         }
+        responseObserver.onNext(response.build());
         responseObserver.onCompleted();
     }
 
-    // Client Streaming
+    /**
+     * 惰性的查询结果游标, 按订单id升序, 每次next才去索引/存储中取下一条
+     *
+     * @param afterId 只返回id大于afterId的订单, 为null时从头开始
+     */
+    private Iterator<Order> searchCursor(String query, String afterId) {
+        Iterable<String> candidates = itemIndex == null ? null : itemIndex.candidates(query, afterId);
+        if (candidates == null) {
+            // 没有索引或者查询串太短无法走索引, 退回全量扫描
+            return Iterators.filter(orderStore.ordersAfter(afterId).iterator(),
+                    order -> ItemIndex.matches(order, query));
+        }
+        Iterator<Order> orders = Iterators.transform(candidates.iterator(), orderStore::get);
+        return Iterators.filter(orders, order -> order != null && ItemIndex.matches(order, query));
+    }
+
+    // page token对客户端是不透明的, 内容是上一页最后一个订单的id
+    private static String encodePageToken(String lastId) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(lastId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decodePageToken(String pageToken) {
+        if (pageToken.isEmpty()) {
+            return null;
+        }
+        return new String(Base64.getUrlDecoder().decode(pageToken), StandardCharsets.UTF_8);
+    }
+
+    // updateOrders的回复中最多列出的订单id数, 超出的部分只给出数量
+    static final int MAX_REPORTED_IDS = 100;
+
+    // Client Streaming, 大量更新请使用updateOrdersStream
     @Override
     public StreamObserver<Order> updateOrders(StreamObserver<StringValue> responseObserver) {
         return new StreamObserver<Order>() {
             StringBuilder updateOrderIdBuilder = new StringBuilder().append("Update Order Ids: ");
+            long updatedCount = 0;
 
             @Override
             public void onNext(Order value) {
                 if (value != null) {
-                    orderCaches.put(value.getId(), value);
-                    updateOrderIdBuilder.append(value.getId()).append(",");
-                    logger.info("Order Id :{} has updated", value.getId());
+                    orderStore.put(value);
+                    if (++updatedCount <= MAX_REPORTED_IDS) {
+                        updateOrderIdBuilder.append(value.getId()).append(",");
+                    }
+                    logger.debug("Order Id :{} has updated", value.getId());
                 }
             }
 
@@ -130,73 +371,79 @@ public class OrderManagementImpl extends OrderManagementGrpc.OrderManagementImpl
 
             @Override
             public void onCompleted() {
-                logger.info("update order completed");
+                logger.info("update order completed, {} orders updated", updatedCount);
+                if (updatedCount > MAX_REPORTED_IDS) {
+                    updateOrderIdBuilder.append("... ").append(updatedCount - MAX_REPORTED_IDS).append(" more");
+                }
                 StringValue reply = StringValue.newBuilder().setValue(updateOrderIdBuilder.toString()).build();
-                responseObserver.onNext(reply);
-                responseObserver.onCompleted();
+                replyWhenDurable(reply, responseObserver);
             }
         };
 
     }
 
-    public static final int BATCH_SIZE = 3;
+    // unary, 条件更新, 版本冲突时不写入并返回当前的订单
+    @Override
+    public void updateOrderIfVersion(ConditionalUpdateRequest request,
+                                     StreamObserver<ConditionalUpdateResponse> responseObserver) {
+        if (request.getExpectedVersion() < 0) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("expected_version must not be negative")
+                                                            .asRuntimeException());
+            return;
+        }
+        Order written = orderStore.compareAndSet(request.getOrder(), request.getExpectedVersion());
+        if (written == null) {
+            ConditionalUpdateResponse.Builder conflict = ConditionalUpdateResponse.newBuilder().setApplied(false);
+            Order current = orderStore.get(request.getOrder().getId());
+            if (current != null) {
+                conflict.setOrder(current);
+            }
+            responseObserver.onNext(conflict.build());
+            responseObserver.onCompleted();
+            return;
+        }
+        replyWhenDurable(ConditionalUpdateResponse.newBuilder().setApplied(true).setOrder(written).build(),
+                responseObserver);
+    }
+
+    // Bi-di Streaming, 批量更新, 按批次回复累计的ack
+    @Override
+    public StreamObserver<Order> updateOrdersStream(StreamObserver<UpdateOrdersAck> responseObserver) {
+        return new OrderUpdateStream(orderStore, orderLog,
+                Integer.getInteger("order.update.batchSize", OrderUpdateStream.DEFAULT_BATCH_SIZE), responseObserver);
+    }
 
     // Bi-di Streaming
     @Override
     public StreamObserver<StringValue> processOrders(StreamObserver<CombinedShipment> responseObserver) {
+        // 查找订单在合并器中进行, 分区合并时在lane上并行执行
+        Function<String, Order> lookup = orderId -> {
+            Order order = orderStore.get(orderId);
+            if (order == null) {
+                logger.warn("No order found, id :{}", orderId);
+            }
+            return order;
+        };
+        ShipmentCombiner combiner = laneWorkers == null ? new SerialShipmentCombiner(lookup)
+                : new PartitionedShipmentCombiner(batchConfig.getLanes(), laneWorkers, lookup);
+        ShipmentBatcher batcher = new ShipmentBatcher(batchConfig, batchScheduler, combiner, responseObserver);
         return new StreamObserver<StringValue>() {
-            int batchMarker = 0;
-
             @Override
             public void onNext(StringValue value) {
                 String orderId = value.getValue();
                 logger.info("Order Proc: Id {}", orderId);
-                Order currentOrder = orderCaches.get(orderId);
-                if (currentOrder == null) {
-                    logger.warn("No order found, id :{}", orderId);
-                    return;
-                }
-                // process an order and increment batch marker to
-                batchMarker++;
-                String destination = currentOrder.getDestination();
-                CombinedShipment existCombinedShipment = combinedShipmentMap.get(destination);
-                if (existCombinedShipment == null) {
-                    existCombinedShipment = CombinedShipment.newBuilder(existCombinedShipment)
-                                                            .addOrderList(currentOrder)
-                                                            .build();
-                    combinedShipmentMap.put(destination, existCombinedShipment);
-                } else {
-                    CombinedShipment combinedShipment = CombinedShipment.newBuilder().build();
-                    combinedShipment.newBuilderForType()
-                                    .addOrderList(currentOrder)
-                                    .setId("CMB-" + new Random().nextInt(1000) + ":" + currentOrder.getDestination())
-                                    .setStatus("Processed")
-                                    .build();
-                    combinedShipmentMap.put(currentOrder.getDestination(), combinedShipment);
-                }
-                if (batchMarker == BATCH_SIZE) {
-                    // Order batch completed. Flush all existing shipments.
-                    for (Map.Entry<String, CombinedShipment> entry : combinedShipmentMap.entrySet()) {
-                        responseObserver.onNext(entry.getValue());
-                    }
-                    // Reset batch marker
-                    batchMarker = 0;
-                    combinedShipmentMap.clear();
-                }
-
+                batcher.add(orderId);
             }
 
             @Override
             public void onError(Throwable t) {
-
+                logger.info("process orders error: {}", t.getMessage());
+                batcher.cancel();
             }
 
             @Override
             public void onCompleted() {
-                for (Map.Entry<String, CombinedShipment> entry : combinedShipmentMap.entrySet()) {
-                    responseObserver.onNext(entry.getValue());
-                }
-                responseObserver.onCompleted();
+                batcher.complete();
             }
         };
     }
@@ -6,6 +6,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -17,11 +18,28 @@ public class OrderManagementServer {
 
     private final Server server;
     private final int port;
+    private final OrderWriteAheadLog orderLog;
 
-    public OrderManagementServer(int port) {
+    public OrderManagementServer(int port) throws IOException {
         this.port = port;
+        // -Dorder.store=offheap时订单保存在堆外, 两种存储的getOrder都直接返回保存的序列化字节
+        boolean offHeap = "offheap".equals(System.getProperty("order.store"));
+        // 商品/目的地/价格索引都在堆上, 堆外存储默认不建索引(查询全量扫描), 可以用-Dorder.index=true打开
+        boolean indexed = Boolean.parseBoolean(System.getProperty("order.index", String.valueOf(!offHeap)));
+        // 指定了-Dorder.wal.dir时订单会持久化到该目录, 重启后恢复
+        String walDir = System.getProperty("order.wal.dir");
+        OrderManagementImpl service;
+        if (walDir == null && !offHeap && indexed) {
+            orderLog = null;
+            service = new OrderManagementImpl();
+        } else {
+            OrderStore orderStore = offHeap ? new OffHeapOrderStore() : new ConcurrentOrderStore();
+            orderLog = walDir == null ? null : OrderWriteAheadLog.open(Paths.get(walDir), orderStore);
+            service = new OrderManagementImpl(orderStore, ShipmentBatchConfig.fromSystemProperties(), orderLog,
+                    indexed);
+        }
         server = ServerBuilder.forPort(this.port)
-                              .addService(new OrderManagementImpl())
+                              .addService(service.bindSerializedService())
                               .build();
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.err.println("Shutting down OrderManagement server since  JVM is shutting down");
@@ -48,7 +66,17 @@ public class OrderManagementServer {
 
     private void stop() throws InterruptedException {
         if (server != null) {
-            server.shutdown().awaitTermination(30, TimeUnit.SECONDS);
+            // watchOrders的流不会自己结束, 超时后强制关闭
+            if (!server.shutdown().awaitTermination(30, TimeUnit.SECONDS)) {
+                server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            }
+        }
+        if (orderLog != null) {
+            try {
+                orderLog.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 
@@ -59,7 +87,7 @@ public class OrderManagementServer {
     }
 
 
-    public static void main(String[] args) throws InterruptedException {
+    public static void main(String[] args) throws InterruptedException, IOException {
         int port = 50051;
         OrderManagementServer orderManagementServer = new OrderManagementServer(port);
         orderManagementServer.start();
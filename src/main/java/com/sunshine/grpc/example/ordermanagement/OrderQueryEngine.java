@@ -0,0 +1,83 @@
+package com.sunshine.grpc.example.ordermanagement;
+
+import com.google.common.collect.Iterators;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * {@link OrderQuery}的执行引擎.
+ * <p>
+ * 每个设置了的条件都是AND关系. 执行时先用各个索引估算每个条件命中的订单数, 选择命中最少的条件作为驱动,
+ * 只遍历它的候选订单, 再对每个候选订单校验全部条件; 没有可用的索引时(没有建索引, 只有短于一个trigram的商品条件,
+ * 或者没有条件)退回全量扫描. 结果是惰性的, 调用方取多少算多少.
+ *
+ * @author: hj
+ * @date: 26-10-18 下午6:45
+ */
+public class OrderQueryEngine {
+    private static final Logger logger = LoggerFactory.getLogger(OrderQueryEngine.class);
+
+    private final OrderStore orderStore;
+    private final ItemIndex itemIndex;
+    private final DestinationIndex destinationIndex;
+    private final PriceIndex priceIndex;
+
+    /**
+     * 索引都可以为null, 对应的条件不再作为驱动, 只在订单上校验
+     */
+    public OrderQueryEngine(OrderStore orderStore, ItemIndex itemIndex, DestinationIndex destinationIndex,
+                            PriceIndex priceIndex) {
+        this.orderStore = orderStore;
+        this.itemIndex = itemIndex;
+        this.destinationIndex = destinationIndex;
+        this.priceIndex = priceIndex;
+    }
+
+    /**
+     * @return 满足所有条件的订单, 顺序取决于选择的驱动条件
+     */
+    public Iterator<Order> execute(OrderQuery query) {
+        String destination = query.getDestination().isEmpty() ? null : query.getDestination();
+        Float minPrice = query.hasMinPrice() ? query.getMinPrice().getValue() : null;
+        Float maxPrice = query.hasMaxPrice() ? query.getMaxPrice().getValue() : null;
+        String item = query.getItemContains().isEmpty() ? null : query.getItemContains();
+
+        Iterable<String> driver = null;
+        String plan = "scan";
+        int best = Integer.MAX_VALUE;
+        if (destination != null && destinationIndex != null) {
+            best = destinationIndex.count(destination);
+            driver = destinationIndex.orderIds(destination);
+            plan = "destination";
+        }
+        if ((minPrice != null || maxPrice != null) && priceIndex != null) {
+            List<String> ids = priceIndex.orderIds(minPrice, maxPrice);
+            if (ids.size() < best) {
+                best = ids.size();
+                driver = ids;
+                plan = "price";
+            }
+        }
+        if (item != null && itemIndex != null) {
+            int estimate = itemIndex.estimate(item);
+            if (estimate >= 0 && estimate < best) {
+                best = estimate;
+                driver = itemIndex.candidates(item);
+                plan = "item";
+            }
+        }
+        logger.debug("query {} driven by {}, estimated {} candidates", query, plan, best);
+
+        Iterator<Order> candidates = driver == null ? orderStore.orders().iterator()
+                : Iterators.transform(driver.iterator(), orderStore::get);
+        // 索引可能落后于存储, 所有条件都在订单上再校验一次
+        return Iterators.filter(candidates, order -> order != null
+                && (destination == null || destination.equals(order.getDestination()))
+                && (minPrice == null || Float.compare(order.getPrice(), minPrice) >= 0)
+                && (maxPrice == null || Float.compare(order.getPrice(), maxPrice) <= 0)
+                && (item == null || ItemIndex.matches(order, item)));
+    }
+}
@@ -0,0 +1,106 @@
+package com.sunshine.grpc.example.ordermanagement;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * 订单存储, 所有实现都必须是线程安全的, 可以被多个gRPC executor线程同时读写.
+ * <p>
+ * 每个订单有一个版本号, 由存储在写入时分配: 新订单为1, 之后每次写入加一, 客户端带来的版本号总是被忽略,
+ * 不能跳过或者伪造版本. 只有{@link #restore(Order)}(WAL恢复)会原样安装记录中的版本号.
+ * {@link #compareAndSet(Order, long)}基于版本号实现乐观并发控制.
+ *
+ * @author: hj
+ * @date: 26-10-17 上午10:12
+ */
+public interface OrderStore {
+
+    /**
+     * @return id对应的订单, 不存在时返回null
+     */
+    Order get(String id);
+
+    /**
+     * 订单序列化后的字节, 可以直接写给传输层而不需要再次编码.
+     * 默认实现每次都会序列化, 保存序列化数据的实现应该覆盖它.
+     *
+     * @return 不存在时返回null
+     */
+    default ByteBuffer getSerialized(String id) {
+        Order order = get(id);
+        return order == null ? null : ByteBuffer.wrap(order.toByteArray());
+    }
+
+    /**
+     * 写入(新增或覆盖)订单, 不检查版本
+     *
+     * @return 被覆盖的旧订单, 不存在时返回null
+     */
+    Order put(Order order);
+
+    /**
+     * 原样安装一条恢复出来的订单(带记录时的版本号), 只给WAL重放使用. 当前版本不低于记录的版本时忽略,
+     * 所以同一条记录重放多次(快照和日志中都有)不会改变版本号.
+     * 没有版本号的旧记录按普通写入分配版本.
+     *
+     * @return 是否写入
+     */
+    boolean restore(Order order);
+
+    /**
+     * 条件写入: 只有订单当前的版本等于expectedVersion时才写入. 版本检查和写入对同一个订单是原子的.
+     *
+     * @param expectedVersion 为0表示订单必须不存在
+     * @return 写入的订单(带新的版本号), 版本不一致时返回null
+     */
+    Order compareAndSet(Order order, long expectedVersion);
+
+    /**
+     * 批量获取
+     *
+     * @return 和ids一一对应的订单, 不存在的位置为null
+     */
+    List<Order> getAll(List<String> ids);
+
+    int size();
+
+    /**
+     * 按订单id升序遍历所有订单. 遍历不会阻塞写入, 也不会抛出ConcurrentModificationException,
+     * 每次返回的都是某个时刻完整的(不可变的)订单版本.
+     */
+    Iterable<Order> orders();
+
+    /**
+     * 和{@link #orders()}相同, 但是从id大于afterId的订单开始, 用于游标/分页续传
+     *
+     * @param afterId 为null时从头开始
+     */
+    Iterable<Order> ordersAfter(String afterId);
+
+    /**
+     * 按版本规则给要写入的订单分配版本号, 忽略订单自带的版本号
+     *
+     * @param previous 当前的订单, 不存在时为null
+     */
+    static Order nextVersion(Order order, Order previous) {
+        long version = previous == null ? 1 : previous.getVersion() + 1;
+        return order.getVersion() == version ? order : order.toBuilder().setVersion(version).build();
+    }
+
+    /**
+     * {@link #restore(Order)}的版本规则
+     *
+     * @return 要安装的订单, 不需要安装时返回null
+     */
+    static Order restoredVersion(Order order, Order previous) {
+        if (order.getVersion() == 0) {
+            return nextVersion(order, previous);
+        }
+        return previous != null && previous.getVersion() >= order.getVersion() ? null : order;
+    }
+
+    /**
+     * 注册写入回调, 应该在开始读写之前注册.
+     */
+    void addListener(OrderStoreListener listener);
+}
@@ -0,0 +1,19 @@
+package com.sunshine.grpc.example.ordermanagement;
+
+/**
+ * 订单写入回调, 用于维护索引等和订单数据保持一致的附加结构.
+ * <p>
+ * 回调在写入线程上、持有该订单id的写锁时执行, 同一个id的回调是串行的, 不同id的回调可能并发.
+ * 实现必须是线程安全的并且尽快返回.
+ *
+ * @author: hj
+ * @date: 26-10-17 上午11:05
+ */
+public interface OrderStoreListener {
+
+    /**
+     * @param previous 被覆盖的旧订单, 新增时为null
+     * @param current  新写入的订单
+     */
+    void onOrderWritten(Order previous, Order current);
+}
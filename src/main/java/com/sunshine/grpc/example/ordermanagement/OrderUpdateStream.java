@@ -0,0 +1,148 @@
+package com.sunshine.grpc.example.ordermanagement;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * updateOrdersStream一次调用的请求处理: 订单攒成最多batchSize个的小批次写入{@link OrderStore},
+ * 每个批次写入(启用WAL时持久化)之后回复一个累计的{@link UpdateOrdersAck}.
+ * <p>
+ * 每个调用只保存一个批次和两个计数, 内存和客户端发送的订单总数无关. ack是累计的, 后一个包含前一个的信息,
+ * 所以客户端来不及读取时(isReady为false)中间的ack直接丢弃, 不会在服务端堆积; 结束时的最后一个ack总是会发送.
+ * <p>
+ * 入站按持久化限流: 关闭自动request, 开始时请求两个批次(一个在持久化, 一个在积攒), 之后每个批次持久化完成才再请求一个批次.
+ * 磁盘跟不上时客户端的isReady变为false, 未持久化的订单最多两个批次, 不会在服务端无限堆积.
+ * <p>
+ * 请求回调是串行的, 但WAL的sync在提交线程上完成, 所以对responseObserver的调用在this上同步.
+ *
+ * @author: hj
+ * @date: 26-10-19 上午11:00
+ */
+class OrderUpdateStream implements StreamObserver<Order> {
+    private static final Logger logger = LoggerFactory.getLogger(OrderUpdateStream.class);
+    static final int DEFAULT_BATCH_SIZE = 100;
+
+    private final OrderStore orderStore;
+    private final Supplier<CompletableFuture<Void>> durability;
+    private final int batchSize;
+    private final ServerCallStreamObserver<UpdateOrdersAck> responseObserver;
+
+    // 只在请求回调中访问
+    private final List<Order> batch;
+    private long applied = 0;
+    private String lastId = "";
+
+    // 以下字段由this保护
+    private long acked = 0;
+    private boolean closed = false;
+
+    /**
+     * @param orderLog 为null时写入内存就回复
+     */
+    OrderUpdateStream(OrderStore orderStore, OrderWriteAheadLog orderLog, int batchSize,
+                      StreamObserver<UpdateOrdersAck> responseObserver) {
+        this(orderStore, durabilityOf(orderLog), batchSize, responseObserver);
+    }
+
+    /**
+     * 必须在服务方法返回之前构造, 否则关闭自动request不生效
+     *
+     * @param durability 返回之前写入的订单全部持久化时完成的future
+     */
+    OrderUpdateStream(OrderStore orderStore, Supplier<CompletableFuture<Void>> durability, int batchSize,
+                      StreamObserver<UpdateOrdersAck> responseObserver) {
+        this.orderStore = orderStore;
+        this.durability = durability;
+        this.batchSize = batchSize;
+        this.batch = new ArrayList<>(batchSize);
+        this.responseObserver = (ServerCallStreamObserver<UpdateOrdersAck>) responseObserver;
+        this.responseObserver.disableAutoRequest();
+        this.responseObserver.request(batchSize * 2);
+    }
+
+    private static Supplier<CompletableFuture<Void>> durabilityOf(OrderWriteAheadLog orderLog) {
+        if (orderLog == null) {
+            return () -> CompletableFuture.completedFuture(null);
+        }
+        return orderLog::sync;
+    }
+
+    @Override
+    public void onNext(Order order) {
+        batch.add(order);
+        if (batch.size() >= batchSize) {
+            applyBatch(false);
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        // 已经回复过ack的批次已经写入, 未满的批次丢弃
+        logger.info("update orders stream error: {}, {} orders applied", t.getMessage(), applied);
+        batch.clear();
+        synchronized (this) {
+            closed = true;
+        }
+    }
+
+    @Override
+    public void onCompleted() {
+        applyBatch(true);
+        logger.info("update orders stream completed, {} orders applied", applied);
+    }
+
+    private void applyBatch(boolean last) {
+        for (Order order : batch) {
+            orderStore.put(order);
+        }
+        if (!batch.isEmpty()) {
+            applied += batch.size();
+            lastId = batch.get(batch.size() - 1).getId();
+            batch.clear();
+        }
+        UpdateOrdersAck ack = UpdateOrdersAck.newBuilder().setApplied(applied).setLastId(lastId).build();
+        durability.get().whenComplete((ignored, t) -> {
+            if (t != null) {
+                fail(t);
+            } else {
+                durable(ack, last);
+            }
+        });
+    }
+
+    // 批次已经持久化: 回复ack, 并为下一个批次请求订单
+    private synchronized void durable(UpdateOrdersAck ack, boolean last) {
+        if (closed) {
+            return;
+        }
+        if (last) {
+            responseObserver.onNext(ack);
+            responseObserver.onCompleted();
+            closed = true;
+            return;
+        }
+        if (responseObserver.isReady() && ack.getApplied() > acked) {
+            responseObserver.onNext(ack);
+            acked = ack.getApplied();
+        }
+        responseObserver.request(batchSize);
+    }
+
+    private synchronized void fail(Throwable t) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        responseObserver.onError(Status.UNAVAILABLE.withDescription("failed to persist orders")
+                                                   .withCause(t)
+                                                   .asRuntimeException());
+    }
+}
@@ -0,0 +1,512 @@
+package com.sunshine.grpc.example.ordermanagement;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * 订单的预写日志(WAL), 让addOrder/updateOrders写入的订单在重启后仍然存在.
+ * <p>
+ * 日志文件是内存映射的、只追加的, 每条记录的格式为 {@code [int size][int crc32][Order bytes]}, 其中size = crc + 数据的长度,
+ * 所以总是大于0; 映射区域中尚未写入的部分全是0, 读到size为0就是日志的结尾, crc不对说明是写了一半的记录, 也当作结尾.
+ * <p>
+ * 写入: 作为{@link OrderStoreListener}在写入线程上序列化订单, 放入队列, 由单独的提交线程批量写入映射区域并
+ * {@link MappedByteBuffer#force()}一次(group commit), 并发写入的订单共享一次刷盘. 调用方通过{@link #sync()}
+ * 得到一个在此之前写入的订单都已经刷盘后才完成的future, 不会阻塞gRPC线程.
+ * <p>
+ * 单个日志文件最多{@code maxLogBytes}字节(不超过一次内存映射的上限2GB), 写满之前提交线程切换到新一代的日志文件.
+ * 映射区域从小到大按需扩大, 切换日志和关闭时把文件截断到实际写入的长度.
+ * 写入失败(包括任何运行时异常)时, 这一批的future都以失败结束, 然后切换到新的日志文件继续写; 提交线程意外退出时,
+ * 队列中剩下的future也都以失败结束, 调用方不会永远等待.
+ * <p>
+ * 恢复: 先加载最新的快照, 再按顺序重放快照之后的日志文件; 记录边界扫描完后并行解码, 再按顺序写入存储.
+ * <p>
+ * 压缩: 定期检查, 自上次快照后写入的日志(跨越所有代, 包括重启前写入、恢复时重放的日志)超过阈值时,
+ * 让提交线程切换到新一代的日志文件, 再把存储的当前内容写成这一代的快照, 最后删除旧的日志和快照. 快照写入期间新的记录照常写入新日志, 同一条记录可能同时出现在快照和新日志中;
+ * 重放通过{@link OrderStore#restore(Order)}原样安装记录的版本号, 已经有相同或更新版本时跳过, 所以重放是幂等的,
+ * 恢复后的版本号和写入时完全一致. 恢复时间只和快照大小加一段日志有关.
+ *
+ * @author: hj
+ * @date: 26-10-18 上午9:30
+ */
+public class OrderWriteAheadLog implements OrderStoreListener, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(OrderWriteAheadLog.class);
+
+    private static final String FILE_PREFIX = "orders-";
+    private static final String LOG_SUFFIX = ".wal";
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final int HEADER_BYTES = 8;
+    // 新日志先映射1MB, 写满后成倍扩大, 写得少的日志(例如重启前的最后一代)不会占用大文件
+    private static final long INITIAL_MAPPED_BYTES = 1024 * 1024;
+    // MappedByteBuffer用int定位, 一次映射最多Integer.MAX_VALUE字节
+    static final long MAX_LOG_BYTES = Integer.MAX_VALUE;
+
+    public static final long DEFAULT_COMPACT_THRESHOLD_BYTES = 256L * 1024 * 1024;
+    public static final long DEFAULT_COMPACT_INTERVAL_SECONDS = 60;
+
+    private final Path dir;
+    private final OrderStore store;
+    private final long compactThresholdBytes;
+    private final long maxLogBytes;
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final Thread committer;
+    private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("order-wal-compactor-%d").build());
+
+    // 以下字段只在提交线程上访问
+    private long generation;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    // 上一批写入失败, 下一批写入前先切换到新的日志文件
+    private boolean reopen = false;
+    // 丢失了记录但这一批中没有barrier, 留给之后的第一批barrier报告
+    private Exception unreported;
+
+    // 所有代的日志累计写入的字节数, 打开时用恢复重放的日志字节数初始化; 只由提交线程修改, 压缩线程会读取
+    private volatile long writtenBytes;
+    // 压缩切换日志时的writtenBytes, 之前写入的内容都包含在这次的快照中; 由rotation的future发布给压缩线程
+    private volatile long rotatedBytes;
+    // 最近一次成功的快照覆盖到的writtenBytes, 只在压缩线程上访问
+    private long snapshotBytes = 0;
+    private volatile boolean closed = false;
+
+    private OrderWriteAheadLog(Path dir, OrderStore store, long compactThresholdBytes, long maxLogBytes,
+                               long generation, long recoveredBytes) throws IOException {
+        this.dir = dir;
+        this.store = store;
+        this.compactThresholdBytes = compactThresholdBytes;
+        this.maxLogBytes = maxLogBytes;
+        this.writtenBytes = recoveredBytes;
+        openLog(generation);
+        this.committer = new Thread(this::commitLoop, "order-wal-committer");
+        this.committer.setDaemon(true);
+    }
+
+    public static OrderWriteAheadLog open(Path dir, OrderStore store) throws IOException {
+        return open(dir, store, DEFAULT_COMPACT_THRESHOLD_BYTES, DEFAULT_COMPACT_INTERVAL_SECONDS);
+    }
+
+    /**
+     * 把dir中的快照和日志恢复到store中, 然后开始记录store之后的写入.
+     * 必须在store开始接受写入之前调用.
+     */
+    public static OrderWriteAheadLog open(Path dir, OrderStore store, long compactThresholdBytes,
+                                          long compactIntervalSeconds) throws IOException {
+        return open(dir, store, compactThresholdBytes, compactIntervalSeconds, MAX_LOG_BYTES);
+    }
+
+    static OrderWriteAheadLog open(Path dir, OrderStore store, long compactThresholdBytes,
+                                   long compactIntervalSeconds, long maxLogBytes) throws IOException {
+        if (maxLogBytes <= HEADER_BYTES || maxLogBytes > MAX_LOG_BYTES) {
+            throw new IllegalArgumentException("maxLogBytes must be in (" + HEADER_BYTES + ", " + MAX_LOG_BYTES
+                    + "], got " + maxLogBytes);
+        }
+        Files.createDirectories(dir);
+        Recovery recovery = recover(dir, store);
+        // 总是从新一代的日志开始写, 旧日志中可能存在的半条记录留给下一次压缩清理;
+        // 重放过的日志在下一次快照之前一直需要重放, 计入压缩阈值
+        OrderWriteAheadLog log = new OrderWriteAheadLog(dir, store, compactThresholdBytes, maxLogBytes,
+                recovery.lastGeneration + 1, recovery.logBytes);
+        log.committer.start();
+        log.compactor.scheduleWithFixedDelay(log::compactIfNeeded, compactIntervalSeconds, compactIntervalSeconds,
+                TimeUnit.SECONDS);
+        store.addListener(log);
+        return log;
+    }
+
+    @Override
+    public void onOrderWritten(Order previous, Order current) {
+        if (!closed) {
+            queue.add(Entry.record(current.toByteArray()));
+        }
+    }
+
+    /**
+     * @return 在此之前写入的订单都已经刷盘后完成的future
+     */
+    public CompletableFuture<Void> sync() {
+        CompletableFuture<Void> barrier = new CompletableFuture<>();
+        if (closed) {
+            barrier.completeExceptionally(new IllegalStateException("order log closed"));
+        } else {
+            queue.add(Entry.barrier(barrier));
+        }
+        return barrier;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        compactor.shutdownNow();
+        queue.add(Entry.STOP);
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ---------------------------------------------------------------- 提交线程
+
+    private void commitLoop() {
+        List<Entry> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                boolean stop = commit(batch);
+                batch.clear();
+                if (stop) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort(batch, new IllegalStateException("order log committer interrupted"));
+        } catch (Throwable t) {
+            logger.error("order log committer died", t);
+            abort(batch, t);
+        }
+    }
+
+    /**
+     * 提交线程退出前让手上和队列中所有的future失败, 之后的{@link #sync()}直接失败
+     */
+    private void abort(List<Entry> batch, Throwable cause) {
+        closed = true;
+        queue.drainTo(batch);
+        fail(batch, cause);
+        // closed之前已经通过检查的sync()可能还在入队
+        List<Entry> late = new ArrayList<>();
+        queue.drainTo(late);
+        fail(late, cause);
+    }
+
+    private static void fail(List<Entry> entries, Throwable cause) {
+        for (Entry entry : entries) {
+            if (entry.barrier != null) {
+                entry.barrier.completeExceptionally(cause);
+            } else if (entry.rotation != null) {
+                entry.rotation.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * 写入一批记录并刷盘一次, 然后完成这一批中的所有barrier.
+     * 有记录没写进去时, 这一批的barrier(没有的话就是之后第一批的barrier)都以失败结束
+     *
+     * @return 是否收到了停止信号
+     */
+    private boolean commit(List<Entry> batch) {
+        // 先找出停止信号, 写入失败时也要退出
+        boolean stop = batch.contains(Entry.STOP);
+        Exception failure = unreported;
+        try {
+            if (reopen) {
+                // 失败的文件中可能留下了写了一半的记录, 恢复时读到半条记录就转到下一个文件
+                openLog(generation + 1);
+                reopen = false;
+            }
+            for (Entry entry : batch) {
+                if (entry.record != null) {
+                    append(entry.record);
+                } else if (entry.rotation != null) {
+                    buffer.force();
+                    openLog(generation + 1);
+                    rotatedBytes = writtenBytes;
+                    entry.rotation.complete(generation);
+                }
+            }
+            buffer.force();
+        } catch (IOException | RuntimeException e) {
+            logger.error("failed to write order log", e);
+            failure = e instanceof UncheckedIOException ? ((UncheckedIOException) e).getCause() : e;
+            reopen = true;
+        }
+        unreported = null;
+        if (failure == null) {
+            for (Entry entry : batch) {
+                if (entry.barrier != null) {
+                    entry.barrier.complete(null);
+                }
+            }
+        } else {
+            fail(batch, failure);
+            if (batch.stream().noneMatch(entry -> entry.barrier != null)) {
+                unreported = failure;
+            }
+        }
+        if (stop) {
+            closeLog();
+        }
+        return stop;
+    }
+
+    private void append(byte[] record) throws IOException {
+        long required = HEADER_BYTES + (long) record.length;
+        if (required > maxLogBytes) {
+            throw new IOException("order record of " + record.length + " bytes exceeds the log file limit");
+        }
+        if (buffer.position() + required > maxLogBytes) {
+            // 当前文件写满了, 切换到新一代的日志文件; 恢复时按代的顺序重放, 压缩时一起删除
+            buffer.force();
+            openLog(generation + 1);
+        }
+        if (buffer.remaining() < required) {
+            // 映射区域不够了, 扩大映射(文件随之变大), 但不超过单个文件的上限; 旧的映射由GC回收
+            buffer.force();
+            int position = buffer.position();
+            long capacity = Math.min(Math.max(buffer.capacity() * 2L, position + required), maxLogBytes);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            buffer.position(position);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        buffer.putInt(record.length + 4);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(record);
+        writtenBytes += required;
+    }
+
+    private void openLog(long newGeneration) throws IOException {
+        if (channel != null) {
+            closeLog();
+        }
+        generation = newGeneration;
+        channel = FileChannel.open(file(dir, generation, LOG_SUFFIX),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(INITIAL_MAPPED_BYTES, maxLogBytes));
+    }
+
+    /**
+     * 把当前日志截断到已经写入的长度(去掉映射区域末尾的0)然后关闭. 截断失败不影响恢复, 只是文件大一些;
+     * 写入失败之后的日志可能留下半条记录, 截断后仍然保留, 恢复时读到半条记录就转到下一个文件
+     */
+    private void closeLog() {
+        try {
+            channel.truncate(buffer.position());
+        } catch (IOException e) {
+            logger.warn("failed to truncate order log generation {}", generation, e);
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("failed to close order log generation {}", generation, e);
+        }
+    }
+
+    // ---------------------------------------------------------------- 压缩
+
+    // 只在压缩线程上调用(测试中直接调用)
+    void compactIfNeeded() {
+        if (closed || writtenBytes - snapshotBytes < compactThresholdBytes) {
+            return;
+        }
+        try {
+            compact();
+        } catch (Exception e) {
+            logger.error("failed to compact order log", e);
+        }
+    }
+
+    /**
+     * 切换到新一代日志, 把store的当前内容写成这一代的快照, 然后删除更早的日志和快照
+     */
+    void compact() throws Exception {
+        CompletableFuture<Long> rotation = new CompletableFuture<>();
+        queue.add(Entry.rotation(rotation));
+        long snapshotGeneration = rotation.get();
+        long coveredBytes = rotatedBytes;
+
+        Path snapshot = file(dir, snapshotGeneration, SNAPSHOT_SUFFIX);
+        Path tmp = dir.resolve(snapshot.getFileName() + ".tmp");
+        int count = 0;
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream stream = new DataOutputStream(
+                     new BufferedOutputStream(Channels.newOutputStream(out), 64 * 1024))) {
+            CRC32 crc = new CRC32();
+            for (Order order : store.orders()) {
+                byte[] record = order.toByteArray();
+                crc.reset();
+                crc.update(record, 0, record.length);
+                stream.writeInt(record.length + 4);
+                stream.writeInt((int) crc.getValue());
+                stream.write(record);
+                count++;
+            }
+            stream.flush();
+            out.force(true);
+        }
+        Files.move(tmp, snapshot, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("order log compacted into {} with {} orders", snapshot.getFileName(), count);
+
+        for (Path old : listFiles(dir, SNAPSHOT_SUFFIX).headMap(snapshotGeneration).values()) {
+            Files.deleteIfExists(old);
+        }
+        for (Path old : listFiles(dir, LOG_SUFFIX).headMap(snapshotGeneration).values()) {
+            Files.deleteIfExists(old);
+        }
+        snapshotBytes = coveredBytes;
+    }
+
+    // ---------------------------------------------------------------- 恢复
+
+    private static Recovery recover(Path dir, OrderStore store) throws IOException {
+        TreeMap<Long, Path> snapshots = listFiles(dir, SNAPSHOT_SUFFIX);
+        TreeMap<Long, Path> logs = listFiles(dir, LOG_SUFFIX);
+        long snapshotGeneration = snapshots.isEmpty() ? 0 : snapshots.lastKey();
+        Recovery recovery = new Recovery(snapshotGeneration);
+        if (!snapshots.isEmpty()) {
+            replay(snapshots.lastEntry().getValue(), store, recovery);
+        }
+        // 快照之后的日志都要重放, 快照那一代的日志中可能有快照里已经包含的记录, 重放是幂等的
+        for (Map.Entry<Long, Path> log : logs.tailMap(snapshotGeneration, true).entrySet()) {
+            recovery.logBytes += replay(log.getValue(), store, recovery);
+            recovery.lastGeneration = Math.max(recovery.lastGeneration, log.getKey());
+        }
+        logger.info("recovered {} order records ({} log bytes) from {}", recovery.records, recovery.logBytes, dir);
+        return recovery;
+    }
+
+    /**
+     * @return 有效记录(第一条损坏的记录之前)占用的字节数
+     */
+    private static long replay(Path file, OrderStore store, Recovery recovery) throws IOException {
+        ByteBuffer data;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            data = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+        }
+        // 1. 顺序扫描记录边界, 只读长度
+        List<ByteBuffer> records = new ArrayList<>();
+        List<Integer> checksums = new ArrayList<>();
+        List<Integer> ends = new ArrayList<>();
+        int position = 0;
+        while (position + HEADER_BYTES <= data.limit()) {
+            int size = data.getInt(position);
+            if (size < 4 || position + 4 + size > data.limit()) {
+                break;
+            }
+            checksums.add(data.getInt(position + 4));
+            ByteBuffer record = data.duplicate();
+            record.position(position + HEADER_BYTES).limit(position + 4 + size);
+            records.add(record.slice());
+            position += 4 + size;
+            ends.add(position);
+        }
+        // 2. 并行校验和解码
+        Order[] orders = new Order[records.size()];
+        IntStream.range(0, records.size()).parallel().forEach(i -> {
+            ByteBuffer record = records.get(i);
+            CRC32 crc = new CRC32();
+            crc.update(record.duplicate());
+            if ((int) crc.getValue() != checksums.get(i)) {
+                return;
+            }
+            try {
+                orders[i] = Order.parseFrom(record.duplicate());
+            } catch (InvalidProtocolBufferException e) {
+                // 留空, 当作损坏的记录
+            }
+        });
+        // 3. 按顺序安装, 第一条损坏的记录之后的内容都不可信
+        int applied = 0;
+        for (Order order : orders) {
+            if (order == null) {
+                logger.warn("order log {} is truncated after {} records", file.getFileName(), applied);
+                break;
+            }
+            store.restore(order);
+            applied++;
+        }
+        recovery.records += applied;
+        return applied == 0 ? 0 : ends.get(applied - 1);
+    }
+
+    private static TreeMap<Long, Path> listFiles(Path dir, String suffix) throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, FILE_PREFIX + "*" + suffix)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                String generation = name.substring(FILE_PREFIX.length(), name.length() - suffix.length());
+                try {
+                    files.put(Long.parseLong(generation), file);
+                } catch (NumberFormatException e) {
+                    logger.warn("ignore unknown file {}", name);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static Path file(Path dir, long generation, String suffix) {
+        return dir.resolve(String.format("%s%020d%s", FILE_PREFIX, generation, suffix));
+    }
+
+    private static class Recovery {
+        // 恢复时看到的最大一代, 没有任何文件时为0
+        long lastGeneration;
+        // 重放的日志(不含快照)中有效记录的字节数
+        long logBytes = 0;
+        int records = 0;
+
+        Recovery(long lastGeneration) {
+            this.lastGeneration = lastGeneration;
+        }
+    }
+
+    private static class Entry {
+        static final Entry STOP = new Entry(null, null, null);
+
+        final byte[] record;
+        final CompletableFuture<Void> barrier;
+        final CompletableFuture<Long> rotation;
+
+        private Entry(byte[] record, CompletableFuture<Void> barrier, CompletableFuture<Long> rotation) {
+            this.record = record;
+            this.barrier = barrier;
+            this.rotation = rotation;
+        }
+
+        static Entry record(byte[] record) {
+            return new Entry(record, null, null);
+        }
+
+        static Entry barrier(CompletableFuture<Void> barrier) {
+            return new Entry(null, barrier, null);
+        }
+
+        static Entry rotation(CompletableFuture<Long> rotation) {
+            return new Entry(null, null, rotation);
+        }
+    }
+}
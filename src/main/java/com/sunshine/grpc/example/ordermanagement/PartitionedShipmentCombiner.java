@@ -0,0 +1,123 @@
+package com.sunshine.grpc.example.ordermanagement;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+/**
+ * 按订单id的hash分区, 把查找订单(堆外存储需要解析)和计算序列化大小的工作分散到多个lane上并行执行.
+ * <p>
+ * 每个lane是共享线程池上的一个串行executor, 独占自己的目的地->订单列表, lane之间没有共享状态, 不需要加锁.
+ * 订单带着批次内的序号进入lane; drain时向每个lane提交一个取出任务, 全部完成后(在最后完成的lane线程上)
+ * 把各个lane中同一目的地的订单按序号合并, 目的地按第一次出现的序号排序.
+ * 所以输出顺序和{@link SerialShipmentCombiner}一致, 与lane的执行快慢无关; drain本身只是提交任务, 不等待.
+ *
+ * @author: hj
+ * @date: 26-10-17 下午5:25
+ */
+class PartitionedShipmentCombiner implements ShipmentCombiner {
+    private static final Comparator<List<Sequenced>> BY_FIRST_SEQ = Comparator.comparingInt(orders -> orders.get(0).seq);
+
+    private final Lane[] lanes;
+    // 批次内订单的序号, 只在持有ShipmentBatcher的锁时读写
+    private int seq = 0;
+
+    /**
+     * @param lookup 按id查找订单, 不存在时返回null, 在lane上调用
+     */
+    PartitionedShipmentCombiner(int laneCount, Executor workers, Function<String, Order> lookup) {
+        lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(MoreExecutors.newSequentialExecutor(workers), lookup);
+        }
+    }
+
+    @Override
+    public void add(String orderId, IntConsumer sized) {
+        int orderSeq = seq++;
+        Lane lane = lanes[Math.floorMod(orderId.hashCode(), lanes.length)];
+        lane.executor.execute(() -> lane.add(orderId, orderSeq, sized));
+    }
+
+    @Override
+    public CompletableFuture<List<CombinedShipment.Builder>> drain() {
+        seq = 0;
+        List<CompletableFuture<Map<String, List<Sequenced>>>> parts = new ArrayList<>(lanes.length);
+        for (Lane lane : lanes) {
+            // 排在这个lane之前提交的add后面执行, 批次内的订单都会被取出
+            parts.add(CompletableFuture.supplyAsync(lane::drain, lane.executor));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]))
+                                .thenApply(ignored -> merge(parts));
+    }
+
+    private static List<CombinedShipment.Builder> merge(List<CompletableFuture<Map<String, List<Sequenced>>>> parts) {
+        Map<String, List<Sequenced>> byDestination = new HashMap<>();
+        for (CompletableFuture<Map<String, List<Sequenced>>> part : parts) {
+            // 都已经完成了, join不会阻塞
+            part.join().forEach((destination, orders) ->
+                    byDestination.computeIfAbsent(destination, key -> new ArrayList<>()).addAll(orders));
+        }
+        List<List<Sequenced>> destinations = new ArrayList<>(byDestination.values());
+        for (List<Sequenced> orders : destinations) {
+            orders.sort(Comparator.comparingInt(order -> order.seq));
+        }
+        destinations.sort(BY_FIRST_SEQ);
+        List<CombinedShipment.Builder> shipments = new ArrayList<>(destinations.size());
+        for (List<Sequenced> orders : destinations) {
+            CombinedShipment.Builder shipment = ShipmentBatcher.newShipment();
+            for (Sequenced order : orders) {
+                shipment.addOrderList(order.order);
+            }
+            shipments.add(shipment);
+        }
+        return shipments;
+    }
+
+    private static class Sequenced {
+        // 订单在批次中的序号, 用于合并排序
+        final int seq;
+        final Order order;
+
+        Sequenced(int seq, Order order) {
+            this.seq = seq;
+            this.order = order;
+        }
+    }
+
+    private static class Lane {
+        final Executor executor;
+        final Function<String, Order> lookup;
+        // 只在executor上访问
+        Map<String, List<Sequenced>> pendingOrders = new HashMap<>();
+
+        Lane(Executor executor, Function<String, Order> lookup) {
+            this.executor = executor;
+            this.lookup = lookup;
+        }
+
+        void add(String orderId, int orderSeq, IntConsumer sized) {
+            Order order = lookup.apply(orderId);
+            if (order == null) {
+                return;
+            }
+            pendingOrders.computeIfAbsent(order.getDestination(), key -> new ArrayList<>())
+                         .add(new Sequenced(orderSeq, order));
+            sized.accept(order.getSerializedSize());
+        }
+
+        Map<String, List<Sequenced>> drain() {
+            Map<String, List<Sequenced>> drained = pendingOrders;
+            pendingOrders = new HashMap<>();
+            return drained;
+        }
+    }
+}
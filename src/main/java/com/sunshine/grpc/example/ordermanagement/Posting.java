@@ -0,0 +1,39 @@
+package com.sunshine.grpc.example.ordermanagement;
+
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 索引中一个key对应的有序订单id集合.
+ * <p>
+ * {@link ConcurrentSkipListSet#size()}需要遍历整个集合, 这里单独维护一个计数, 查询计划可以O(1)地估算选择性.
+ * 同一个订单id的写入在{@link OrderStore}中是串行的, 所以计数和集合始终一致.
+ *
+ * @author: hj
+ * @date: 26-10-18 下午6:00
+ */
+class Posting {
+    private final NavigableSet<String> ids = new ConcurrentSkipListSet<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    void add(String id) {
+        if (ids.add(id)) {
+            size.incrementAndGet();
+        }
+    }
+
+    void remove(String id) {
+        if (ids.remove(id)) {
+            size.decrementAndGet();
+        }
+    }
+
+    NavigableSet<String> ids() {
+        return ids;
+    }
+
+    int size() {
+        return size.get();
+    }
+}
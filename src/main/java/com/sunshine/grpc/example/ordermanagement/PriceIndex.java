@@ -0,0 +1,149 @@
+package com.sunshine.grpc.example.ordermanagement;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 订单价格的有序索引, 用于价格区间查询.
+ * <p>
+ * 索引是两个按(价格, id)排序的并行数组: 原始类型的{@code float[]}和订单id, 不需要为每个价格装箱,
+ * 区间查询是两次二分查找, 结果是数组的一段, 大小可以O(1)得到.
+ * <p>
+ * 有序数组不适合逐条插入, 所以写入只记录到pending中, 下一次查询时把pending排序后和现有数组归并成一个新的快照,
+ * 代价是O(n + d log d), d是两次查询之间修改过的订单数. 快照一旦生成就不再修改, 查询返回的结果可以在锁外使用.
+ * <p>
+ * 写入路径(在订单存储的写锁内)只是一次{@link ConcurrentHashMap#put}, 不加锁. 归并由查询线程在单独的锁内完成,
+ * 新快照通过volatile字段发布, 然后才按(id, 价格)有条件地从pending中删除已经归并的条目:
+ * 归并期间又被修改的订单留在pending中, 下一次查询再归并, 不会丢失.
+ *
+ * @author: hj
+ * @date: 26-10-18 下午6:20
+ */
+public class PriceIndex implements OrderStoreListener {
+    private static final Snapshot EMPTY = new Snapshot(new float[0], new String[0]);
+
+    private volatile Snapshot snapshot = EMPTY;
+    // 上次归并之后价格有变化的订单: id -> 新价格
+    private final Map<String, Float> pending = new ConcurrentHashMap<>();
+    // 只在查询线程之间互斥, 写入不需要
+    private final Object mergeLock = new Object();
+
+    @Override
+    public void onOrderWritten(Order previous, Order current) {
+        if (previous != null && Float.compare(previous.getPrice(), current.getPrice()) == 0) {
+            return;
+        }
+        pending.put(current.getId(), current.getPrice());
+    }
+
+    /**
+     * 价格在[minPrice, maxPrice]之间的订单id, 按价格升序
+     *
+     * @param minPrice 为null时不限
+     * @param maxPrice 为null时不限
+     * @return 不可变的列表, size()是O(1)的
+     */
+    public List<String> orderIds(Float minPrice, Float maxPrice) {
+        Snapshot current = snapshot();
+        int from = minPrice == null ? 0 : current.lowerBound(minPrice);
+        int to = maxPrice == null ? current.prices.length : current.upperBound(maxPrice);
+        if (from >= to) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(current.ids).subList(from, to));
+    }
+
+    private Snapshot snapshot() {
+        if (pending.isEmpty()) {
+            return snapshot;
+        }
+        synchronized (mergeLock) {
+            if (pending.isEmpty()) {
+                // 等锁期间别的查询已经归并了
+                return snapshot;
+            }
+            Map<String, Float> changes = new HashMap<>(pending);
+            Snapshot merged = merge(snapshot, changes);
+            snapshot = merged;
+            for (Map.Entry<String, Float> change : changes.entrySet()) {
+                pending.remove(change.getKey(), change.getValue());
+            }
+            return merged;
+        }
+    }
+
+    private static Snapshot merge(Snapshot old, Map<String, Float> changes) {
+        List<Map.Entry<String, Float>> added = new ArrayList<>(changes.entrySet());
+        added.sort((a, b) -> compare(a.getValue(), a.getKey(), b.getValue(), b.getKey()));
+
+        // 旧快照中被修改过的订单的条目要丢掉, 所以最终大小要归并完才知道
+        float[] prices = new float[old.prices.length + added.size()];
+        String[] ids = new String[prices.length];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < old.prices.length || j < added.size()) {
+            if (i < old.prices.length && changes.containsKey(old.ids[i])) {
+                i++;
+            } else if (j == added.size() || (i < old.prices.length
+                    && compare(old.prices[i], old.ids[i], added.get(j).getValue(), added.get(j).getKey()) < 0)) {
+                prices[size] = old.prices[i];
+                ids[size++] = old.ids[i++];
+            } else {
+                prices[size] = added.get(j).getValue();
+                ids[size++] = added.get(j++).getKey();
+            }
+        }
+        return new Snapshot(Arrays.copyOf(prices, size), Arrays.copyOf(ids, size));
+    }
+
+    private static int compare(float price1, String id1, float price2, String id2) {
+        int result = Float.compare(price1, price2);
+        return result != 0 ? result : id1.compareTo(id2);
+    }
+
+    private static final class Snapshot {
+        final float[] prices;
+        final String[] ids;
+
+        Snapshot(float[] prices, String[] ids) {
+            this.prices = prices;
+            this.ids = ids;
+        }
+
+        // 第一个价格 >= price的位置
+        int lowerBound(float price) {
+            int low = 0;
+            int high = prices.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (Float.compare(prices[mid], price) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        // 第一个价格 > price的位置
+        int upperBound(float price) {
+            int low = 0;
+            int high = prices.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (Float.compare(prices[mid], price) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
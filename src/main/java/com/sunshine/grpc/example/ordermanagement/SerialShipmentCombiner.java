@@ -0,0 +1,52 @@
+package com.sunshine.grpc.example.ordermanagement;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+/**
+ * 在调用线程上查找和合并, 批次内每个目的地只有一个{@link CombinedShipment.Builder}, 发送时才build,
+ * 热路径上的分配和输出成正比而不是和输入成正比.
+ *
+ * @author: hj
+ * @date: 26-10-17 下午5:15
+ */
+class SerialShipmentCombiner implements ShipmentCombiner {
+    private final Function<String, Order> lookup;
+    // 当前批次每个目的地一个builder, LinkedHashMap保持目的地第一次出现的顺序
+    private final Map<String, CombinedShipment.Builder> pendingShipments = new LinkedHashMap<>();
+
+    /**
+     * @param lookup 按id查找订单, 不存在时返回null
+     */
+    SerialShipmentCombiner(Function<String, Order> lookup) {
+        this.lookup = lookup;
+    }
+
+    @Override
+    public void add(String orderId, IntConsumer sized) {
+        Order order = lookup.apply(orderId);
+        if (order == null) {
+            return;
+        }
+        String destination = order.getDestination();
+        CombinedShipment.Builder shipment = pendingShipments.get(destination);
+        if (shipment == null) {
+            shipment = ShipmentBatcher.newShipment();
+            pendingShipments.put(destination, shipment);
+        }
+        shipment.addOrderList(order);
+        sized.accept(order.getSerializedSize());
+    }
+
+    @Override
+    public CompletableFuture<List<CombinedShipment.Builder>> drain() {
+        List<CombinedShipment.Builder> shipments = new ArrayList<>(pendingShipments.values());
+        pendingShipments.clear();
+        return CompletableFuture.completedFuture(shipments);
+    }
+}
@@ -0,0 +1,73 @@
+package com.sunshine.grpc.example.ordermanagement;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * processOrders批处理的刷新条件, 满足任意一个就把当前批次的CombinedShipment发送出去:
+ * <ul>
+ * <li>批次中的订单数达到maxSize</li>
+ * <li>批次中第一个订单已经等待了maxLingerMillis</li>
+ * <li>批次中订单的序列化大小之和达到maxBytes</li>
+ * </ul>
+ * lanes大于1时, 一次调用内订单的查找和合并按订单id分区到多个lane上并行执行, 见{@link PartitionedShipmentCombiner}.
+ * <p>
+ * 可以通过系统属性按部署调整, 例如 {@code -Dorder.batch.maxSize=100 -Dorder.batch.maxLingerMillis=20}.
+ *
+ * @author: hj
+ * @date: 26-10-17 下午3:40
+ */
+public class ShipmentBatchConfig {
+    public static final int DEFAULT_MAX_SIZE = 3;
+    public static final long DEFAULT_MAX_LINGER_MILLIS = 1000;
+    public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+    public static final int DEFAULT_LANES = 1;
+
+    private final int maxSize;
+    private final long maxLingerMillis;
+    private final long maxBytes;
+    private final int lanes;
+
+    public ShipmentBatchConfig(int maxSize, long maxLingerMillis, long maxBytes) {
+        this(maxSize, maxLingerMillis, maxBytes, DEFAULT_LANES);
+    }
+
+    public ShipmentBatchConfig(int maxSize, long maxLingerMillis, long maxBytes, int lanes) {
+        if (maxSize <= 0 || maxLingerMillis <= 0 || maxBytes <= 0 || lanes <= 0) {
+            throw new IllegalArgumentException("batch limits must be positive");
+        }
+        this.maxSize = maxSize;
+        this.maxLingerMillis = maxLingerMillis;
+        this.maxBytes = maxBytes;
+        this.lanes = lanes;
+    }
+
+    public static ShipmentBatchConfig fromSystemProperties() {
+        return new ShipmentBatchConfig(
+                Integer.getInteger("order.batch.maxSize", DEFAULT_MAX_SIZE),
+                Long.getLong("order.batch.maxLingerMillis", DEFAULT_MAX_LINGER_MILLIS),
+                Long.getLong("order.batch.maxBytes", DEFAULT_MAX_BYTES),
+                Integer.getInteger("order.batch.lanes", DEFAULT_LANES));
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getMaxLinger(TimeUnit unit) {
+        return unit.convert(maxLingerMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getLanes() {
+        return lanes;
+    }
+
+    @Override
+    public String toString() {
+        return "ShipmentBatchConfig{maxSize=" + maxSize + ", maxLingerMillis=" + maxLingerMillis
+                + ", maxBytes=" + maxBytes + ", lanes=" + lanes + "}";
+    }
+}
@@ -0,0 +1,180 @@
+package com.sunshine.grpc.example.ordermanagement;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * processOrders一次调用的批处理阶段: 用{@link ShipmentCombiner}按目的地合并订单, 按{@link ShipmentBatchConfig}中的
+ * 数量、等待时间、字节数任意一个条件刷新.
+ * <p>
+ * 等待时间的定时器运行在共享的scheduler上, 不占用gRPC的回调线程. 回调线程、定时器线程和lane线程(报告订单大小)
+ * 都可能刷新, 所以批次状态都在this上同步.
+ * <p>
+ * 刷新只是调用{@link ShipmentCombiner#drain()}拿到一个future, 不等待合并完成, 持有锁时不会阻塞.
+ * 发送通过一条future链串行化: 每个批次的发送排在上一个批次之后, 所以responseObserver不会被并发调用,
+ * 批次之间的顺序也保持不变; 结束响应流同样排在最后一个批次之后. 合并失败时用INTERNAL结束调用.
+ *
+ * @author: hj
+ * @date: 26-10-17 下午3:55
+ */
+class ShipmentBatcher {
+    private static final Logger logger = LoggerFactory.getLogger(ShipmentBatcher.class);
+    // 所有调用共享的合并单号
+    private static final AtomicLong SHIPMENT_IDS = new AtomicLong();
+
+    private final ShipmentBatchConfig config;
+    private final ScheduledExecutorService scheduler;
+    private final StreamObserver<CombinedShipment> responseObserver;
+
+    private final ShipmentCombiner combiner;
+    private int batchSize = 0;
+    private long batchBytes = 0;
+    // 每次刷新加一, 用来识别已经过期的定时器
+    private long batchSeq = 0;
+    private ScheduledFuture<?> lingerTimer;
+    private boolean closed = false;
+    // 最后一个批次发送完成的future, 之后的批次接在它后面
+    private CompletableFuture<Void> emitted = CompletableFuture.completedFuture(null);
+    // 调用出错或被取消后不再发送, 在发送链上读取
+    private volatile boolean cancelled = false;
+    // 发送链上的错误只报告一次, 只在发送链上访问
+    private boolean failed = false;
+
+    ShipmentBatcher(ShipmentBatchConfig config, ScheduledExecutorService scheduler, ShipmentCombiner combiner,
+                    StreamObserver<CombinedShipment> responseObserver) {
+        this.config = config;
+        this.scheduler = scheduler;
+        this.combiner = combiner;
+        this.responseObserver = responseObserver;
+    }
+
+    synchronized void add(String orderId) {
+        if (closed) {
+            return;
+        }
+        long batch = batchSeq;
+        batchSize++;
+        // 订单的大小可能稍后在lane上才知道
+        combiner.add(orderId, bytes -> onSized(batch, bytes));
+        if (batchSize >= config.getMaxSize()) {
+            flush();
+        } else if (lingerTimer == null && batchSize > 0) {
+            // 串行合并时, 字节数触发的刷新可能已经在combiner.add中发生了
+            long seq = batchSeq;
+            lingerTimer = scheduler.schedule(() -> flushOnLinger(seq), config.getMaxLinger(TimeUnit.MILLISECONDS),
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void onSized(long seq, int bytes) {
+        if (closed || seq != batchSeq) {
+            // 订单所在的批次已经刷新了
+            return;
+        }
+        batchBytes += bytes;
+        if (batchBytes >= config.getMaxBytes()) {
+            flush();
+        }
+    }
+
+    /**
+     * 发送剩余的批次, 之前的批次都发送完后结束响应流
+     */
+    synchronized void complete() {
+        if (closed) {
+            return;
+        }
+        flush();
+        closed = true;
+        emitted.thenRun(() -> {
+            if (!cancelled) {
+                responseObserver.onCompleted();
+            }
+        });
+    }
+
+    /**
+     * 调用出错或被取消, 丢弃未发送的批次
+     */
+    synchronized void cancel() {
+        closed = true;
+        cancelled = true;
+        cancelTimer();
+    }
+
+    private synchronized void flushOnLinger(long seq) {
+        if (closed || seq != batchSeq) {
+            // 这个批次已经因为数量或字节数被刷新了
+            return;
+        }
+        lingerTimer = null;
+        logger.debug("flush {} orders after linger", batchSize);
+        flush();
+    }
+
+    private void flush() {
+        cancelTimer();
+        if (batchSize > 0) {
+            CompletableFuture<List<CombinedShipment.Builder>> drained = combiner.drain();
+            // 合并已经完成时(串行合并)在当前线程上发送, 否则在合并完成的线程上发送
+            emitted = emitted.thenCombine(drained, (ignored, shipments) -> shipments)
+                             .thenAccept(this::emit)
+                             .whenComplete((ignored, t) -> {
+                                 if (t != null) {
+                                     fail(t);
+                                 }
+                             });
+        }
+        batchSize = 0;
+        batchBytes = 0;
+        batchSeq++;
+    }
+
+    // 在发送链上调用, 同一时间只有一个; 单号在这里分配, 一次调用内的单号随发送顺序递增
+    private void emit(List<CombinedShipment.Builder> shipments) {
+        for (CombinedShipment.Builder shipment : shipments) {
+            if (cancelled) {
+                return;
+            }
+            String destination = shipment.getOrderList(0).getDestination();
+            responseObserver.onNext(shipment.setId("CMB-" + SHIPMENT_IDS.incrementAndGet() + ":" + destination)
+                                            .build());
+        }
+    }
+
+    // 在发送链上调用; 失败之后链上的后续批次也都失败, 只报告第一次
+    private void fail(Throwable t) {
+        if (failed || cancelled) {
+            return;
+        }
+        failed = true;
+        logger.warn("failed to combine shipments", t);
+        cancel();
+        responseObserver.onError(Status.INTERNAL.withDescription("failed to combine shipments")
+                                                .withCause(t)
+                                                .asRuntimeException());
+    }
+
+    /**
+     * 新的合并单, 单号在发送时分配, 在所有调用之间唯一
+     */
+    static CombinedShipment.Builder newShipment() {
+        return CombinedShipment.newBuilder().setStatus("Processed");
+    }
+
+    private void cancelTimer() {
+        if (lingerTimer != null) {
+            lingerTimer.cancel(false);
+            lingerTimer = null;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.sunshine.grpc.example.ordermanagement;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntConsumer;
+
+/**
+ * 把一个批次内的订单按目的地合并成{@link CombinedShipment}.
+ * <p>
+ * 由{@link ShipmentBatcher}在持有自身锁时调用, 实现不需要考虑add和drain之间的并发.
+ *
+ * @author: hj
+ * @date: 26-10-17 下午5:10
+ */
+interface ShipmentCombiner {
+
+    /**
+     * 把订单加入当前批次. 查找订单可能在其他线程上进行, 但一定在之后的{@link #drain()}之前完成;
+     * 找到订单后用它序列化后的大小调用sized, 订单不存在时不调用.
+     */
+    void add(String orderId, IntConsumer sized);
+
+    /**
+     * 取出当前批次合并好的结果并开始新的批次, 不阻塞调用线程.
+     * 结果按目的地在批次中第一次出现的顺序排列, 合并单内的订单保持加入的顺序, 同样的输入总是得到同样的输出.
+     * 合并单号由{@link ShipmentBatcher}在发送时按发送顺序分配, 这里还没有设置.
+     */
+    CompletableFuture<List<CombinedShipment.Builder>> drain();
+}
@@ -0,0 +1,71 @@
+package com.sunshine.grpc.example.productinfo;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ProductInfoImpl}中产品缓存的容量和过期配置:
+ * <ul>
+ * <li>maxBytes大于0时按产品序列化后的大小限制缓存, 否则按产品个数(maxEntries)限制</li>
+ * <li>ttlSeconds大于0时产品在写入之后ttlSeconds秒过期, 下一次读取时重新从{@link ProductLoader}加载</li>
+ * <li>loaderThreads是执行阻塞的{@link ProductLoader#load(String)}的线程数</li>
+ * </ul>
+ * 可以通过系统属性按部署调整, 例如 {@code -Dproduct.cache.maxBytes=268435456 -Dproduct.cache.ttlSeconds=600}.
+ *
+ * @author: hj
+ * @date: 26-10-19 下午2:10
+ */
+public class ProductCacheConfig {
+    public static final long DEFAULT_MAX_ENTRIES = 100_000;
+    public static final long DEFAULT_MAX_BYTES = 0;
+    public static final long DEFAULT_TTL_SECONDS = 0;
+    public static final int DEFAULT_LOADER_THREADS = 8;
+
+    private final long maxEntries;
+    private final long maxBytes;
+    private final long ttlSeconds;
+    private final int loaderThreads;
+
+    public ProductCacheConfig(long maxEntries, long maxBytes, long ttlSeconds) {
+        this(maxEntries, maxBytes, ttlSeconds, DEFAULT_LOADER_THREADS);
+    }
+
+    public ProductCacheConfig(long maxEntries, long maxBytes, long ttlSeconds, int loaderThreads) {
+        if (maxEntries <= 0 || maxBytes < 0 || ttlSeconds < 0 || loaderThreads <= 0) {
+            throw new IllegalArgumentException("invalid product cache limits");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlSeconds = ttlSeconds;
+        this.loaderThreads = loaderThreads;
+    }
+
+    public static ProductCacheConfig fromSystemProperties() {
+        return new ProductCacheConfig(
+                Long.getLong("product.cache.maxEntries", DEFAULT_MAX_ENTRIES),
+                Long.getLong("product.cache.maxBytes", DEFAULT_MAX_BYTES),
+                Long.getLong("product.cache.ttlSeconds", DEFAULT_TTL_SECONDS),
+                Integer.getInteger("product.cache.loaderThreads", DEFAULT_LOADER_THREADS));
+    }
+
+    public long getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getTtl(TimeUnit unit) {
+        return unit.convert(ttlSeconds, TimeUnit.SECONDS);
+    }
+
+    public int getLoaderThreads() {
+        return loaderThreads;
+    }
+
+    @Override
+    public String toString() {
+        return "ProductCacheConfig{maxEntries=" + maxEntries + ", maxBytes=" + maxBytes
+                + ", ttlSeconds=" + ttlSeconds + ", loaderThreads=" + loaderThreads + "}";
+    }
+}
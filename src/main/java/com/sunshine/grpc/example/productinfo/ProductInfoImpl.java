@@ -1,36 +1,179 @@
 package com.sunshine.grpc.example.productinfo;
 
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sunshine.grpc.example.marshaller.SerializedMessage;
+import com.sunshine.grpc.example.marshaller.SerializedResponses;
+import io.grpc.ServerServiceDefinition;
 import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
+ * 产品和它的序列化字节一起缓存, 通过{@link #bindSerializedService()}注册时getProduct直接发送缓存的字节.
+ * <p>
+ * 缓存是有界的(Caffeine, W-TinyLFU淘汰策略, 一次性的扫描不会把热点产品挤出去), 容量和过期时间见{@link ProductCacheConfig}.
+ * 未命中时由{@link ProductLoader}从后端存储加载. 缓存中保存的是加载的future, 同一个产品的并发未命中都等待同一个future
+ * (single-flight), 后端只会被请求一次; 加载完成后在完成的线程上回复所有等待的调用, gRPC的executor线程不会被阻塞.
+ * 加载失败或者产品不存在时不缓存结果, 下一次请求重新加载.
+ * 没有后端存储({@link ProductLoader#NONE})时缓存就是唯一的数据, 被淘汰或过期的产品将无法再查询到;
+ * 这时未命中直接在调用线程上回复NOT_FOUND, 不插入加载中的条目, 也不经过加载线程.
+ *
  * @author: hj
  * @date: 21-8-10 上午10:50
  */
 public class ProductInfoImpl extends ProductInfoGrpc.ProductInfoImplBase {
-    private Map<String, Product> productCacheMap = new ConcurrentHashMap<>();
+    private static final Logger logger = LoggerFactory.getLogger(ProductInfoImpl.class);
+    // 每个缓存条目除了产品本身之外的大致开销(key、节点、buffer等), 用于按字节限制容量
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+    // 未命中时回复的异常, 预先创建并且不填充堆栈, 大量未命中时不需要每次构造异常
+    private static final StatusRuntimeException PRODUCT_NOT_FOUND =
+            new StatusRuntimeException(Status.NOT_FOUND.withDescription("product not found")) {
+                @Override
+                public synchronized Throwable fillInStackTrace() {
+                    return this;
+                }
+            };
+
+    private final AsyncLoadingCache<String, SerializedMessage<Product>> productCache;
+    // 执行阻塞的ProductLoader.load
+    private final ExecutorService loaderExecutor;
+    // 没有后端存储, 未命中即不存在
+    private final boolean cacheOnly;
+
+    public ProductInfoImpl() {
+        this(ProductCacheConfig.fromSystemProperties(), ProductLoader.NONE);
+    }
+
+    public ProductInfoImpl(ProductCacheConfig config, ProductLoader loader) {
+        Caffeine<Object, Object> builder = Caffeine.newBuilder().recordStats();
+        if (config.getMaxBytes() > 0) {
+            builder.maximumWeight(config.getMaxBytes())
+                   .weigher((String id, SerializedMessage<Product> product) ->
+                           ENTRY_OVERHEAD_BYTES + id.length() * 2 + product.getMessage().getSerializedSize());
+        } else {
+            builder.maximumSize(config.getMaxEntries());
+        }
+        if (config.getTtl(TimeUnit.SECONDS) > 0) {
+            builder.expireAfterWrite(config.getTtl(TimeUnit.SECONDS), TimeUnit.SECONDS);
+        }
+        cacheOnly = loader == ProductLoader.NONE;
+        loaderExecutor = Executors.newFixedThreadPool(config.getLoaderThreads(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("product-loader-%d").build());
+        productCache = builder.buildAsync((id, executor) -> loader.loadAsync(id, loaderExecutor)
+                .thenApply(product -> product == null ? null : new SerializedMessage<>(product)));
+        logger.info("product cache: {}", config);
+    }
 
     @Override
     public void addProduct(Product product, StreamObserver<ProductId> responseObserver) {
         // 获取产品的id
         String id = product.getId();
         ProductId productId = ProductId.newBuilder().setValue(id).build();
-        productCacheMap.put(id, product);
+        productCache.put(id, CompletableFuture.completedFuture(new SerializedMessage<>(product)));
         responseObserver.onNext(productId);
         responseObserver.onCompleted();
     }
 
+    // Bi-di Streaming, 批量添加, 每个批次回复一个ack
+    @Override
+    public StreamObserver<Product> addProducts(StreamObserver<AddProductsAck> responseObserver) {
+        return ProductIngestStream.start(this::putAll,
+                Integer.getInteger("product.ingest.batchSize", ProductIngestStream.DEFAULT_BATCH_SIZE),
+                responseObserver);
+    }
+
+    private void putAll(List<Product> products) {
+        Map<String, SerializedMessage<Product>> entries = new HashMap<>(products.size() * 2);
+        for (Product product : products) {
+            entries.put(product.getId(), new SerializedMessage<>(product));
+        }
+        productCache.synchronous().putAll(entries);
+    }
+
     @Override
     public void getProduct(ProductId productId, StreamObserver<Product> responseObserver) {
-        String id = productId.getValue();
-        if (productCacheMap.containsKey(id)) {
-            responseObserver.onNext(productCacheMap.get(id));
+        lookup(productId.getValue(), responseObserver, product -> {
+            responseObserver.onNext(product.getMessage());
             responseObserver.onCompleted();
+        });
+    }
+
+    /**
+     * getProduct的零拷贝版本, 响应是缓存的序列化字节, 不需要每次重新编码
+     */
+    public void getProductSerialized(ProductId productId, StreamObserver<ByteBuffer> responseObserver) {
+        lookup(productId.getValue(), responseObserver, product -> {
+            responseObserver.onNext(product.getSerialized());
+            responseObserver.onCompleted();
+        });
+    }
+
+    /**
+     * 和{@link #bindService()}相同, 但是getProduct由{@link #getProductSerialized}处理
+     */
+    public ServerServiceDefinition bindSerializedService() {
+        return SerializedResponses.replaceUnary(bindService(), ProductInfoGrpc.getGetProductMethod(),
+                this::getProductSerialized);
+    }
+
+    /**
+     * 缓存命中时在当前线程上调用onFound, 否则在加载完成的线程上调用; 产品不存在或者加载失败时回复错误
+     */
+    private void lookup(String id, StreamObserver<?> responseObserver, Consumer<SerializedMessage<Product>> onFound) {
+        CompletableFuture<SerializedMessage<Product>> cached;
+        if (cacheOnly) {
+            cached = productCache.getIfPresent(id);
+            if (cached == null) {
+                responseObserver.onError(PRODUCT_NOT_FOUND);
+                return;
+            }
         } else {
-            responseObserver.onError(Status.NOT_FOUND.asRuntimeException());
+            // 有后端存储时get本身先查找已有的条目, 未命中才插入加载中的future
+            cached = productCache.get(id);
         }
+        // 已经完成的future在当前线程上回调
+        cached.whenComplete((product, t) -> {
+            if (t != null) {
+                logger.warn("failed to load product {}", id, t);
+                responseObserver.onError(Status.UNAVAILABLE.withDescription("failed to load product")
+                                                           .withCause(t)
+                                                           .asRuntimeException());
+            } else if (product == null) {
+                responseObserver.onError(PRODUCT_NOT_FOUND);
+            } else {
+                onFound.accept(product);
+            }
+        });
+    }
+
+    /**
+     * 缓存的命中、未命中、加载和淘汰次数
+     */
+    public CacheStats cacheStats() {
+        return productCache.synchronous().stats();
+    }
+
+    public long cacheSize() {
+        return productCache.synchronous().estimatedSize();
+    }
+
+    // 立即执行挂起的淘汰等维护工作, 测试用
+    void cleanUp() {
+        productCache.synchronous().cleanUp();
     }
 }
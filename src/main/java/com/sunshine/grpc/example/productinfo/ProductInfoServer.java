@@ -15,12 +15,13 @@ import java.util.concurrent.TimeUnit;
 public class ProductInfoServer {
     private final static Logger logger = LoggerFactory.getLogger(ProductInfoServer.class);
     private final Server server;
+    private final ProductInfoImpl productInfo = new ProductInfoImpl();
     private int port;
 
     public ProductInfoServer(int port) {
         this.port = port;
         server = ServerBuilder.forPort(this.port)
-                              .addService(new ProductInfoImpl())
+                              .addService(productInfo.bindSerializedService())
                               .build();
         logger.info("Server started, listening on " + port);
 
@@ -40,6 +41,7 @@ public class ProductInfoServer {
         if (server != null){
             server.shutdown().awaitTermination(10, TimeUnit.SECONDS);
         }
+        System.err.println("product cache: size=" + productInfo.cacheSize() + ", " + productInfo.cacheStats());
     }
 
     /**
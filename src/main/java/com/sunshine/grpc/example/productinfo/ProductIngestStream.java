@@ -0,0 +1,109 @@
+package com.sunshine.grpc.example.productinfo;
+
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * addProducts一次调用的请求处理: 产品攒成batchSize个一批写入缓存, 每批回复一个{@link AddProductsAck}.
+ * <p>
+ * 和{@code ManualFlowControlServer}一样关闭自动request, 每次向客户端请求一个批次的消息, 批次写入并回复ack之后,
+ * 响应方向仍然ready才请求下一批; 客户端不读取ack时服务端也停止读取产品, 每个调用最多缓存一个批次.
+ * <p>
+ * 请求回调和onReadyHandler在同一个串行executor上执行, 这里不需要加锁.
+ *
+ * @author: hj
+ * @date: 26-10-19 下午4:05
+ */
+class ProductIngestStream implements StreamObserver<Product>, Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(ProductIngestStream.class);
+    static final int DEFAULT_BATCH_SIZE = 500;
+
+    private final Consumer<List<Product>> sink;
+    private final int batchSize;
+    private final ServerCallStreamObserver<AddProductsAck> responseObserver;
+
+    private List<Product> batch;
+    private long accepted = 0;
+    // 防止onNext和onReady之间的竞争导致重复request, 见ManualFlowControlServer
+    private boolean wasReady = false;
+
+    private ProductIngestStream(Consumer<List<Product>> sink, int batchSize,
+                                ServerCallStreamObserver<AddProductsAck> responseObserver) {
+        this.sink = sink;
+        this.batchSize = batchSize;
+        this.batch = new ArrayList<>(batchSize);
+        this.responseObserver = responseObserver;
+    }
+
+    /**
+     * 必须在服务方法返回之前调用
+     *
+     * @param sink 批量写入产品
+     */
+    static ProductIngestStream start(Consumer<List<Product>> sink, int batchSize,
+                                     StreamObserver<AddProductsAck> responseObserver) {
+        ServerCallStreamObserver<AddProductsAck> serverCallStreamObserver =
+                (ServerCallStreamObserver<AddProductsAck>) responseObserver;
+        ProductIngestStream stream = new ProductIngestStream(sink, batchSize, serverCallStreamObserver);
+        serverCallStreamObserver.disableAutoRequest();
+        serverCallStreamObserver.setOnReadyHandler(stream);
+        return stream;
+    }
+
+    // onReadyHandler
+    @Override
+    public void run() {
+        if (responseObserver.isReady() && !wasReady) {
+            wasReady = true;
+            responseObserver.request(batchSize - batch.size());
+        }
+    }
+
+    @Override
+    public void onNext(Product product) {
+        batch.add(product);
+        if (batch.size() < batchSize) {
+            return;
+        }
+        flush();
+        if (responseObserver.isReady()) {
+            responseObserver.request(batchSize);
+        } else {
+            // 客户端读取ack太慢, 等待onReady再请求下一批
+            wasReady = false;
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        // 已经回复过ack的批次已经写入, 未满的批次丢弃
+        logger.info("add products stream error: {}, {} products accepted", t.getMessage(), accepted);
+    }
+
+    @Override
+    public void onCompleted() {
+        if (!batch.isEmpty()) {
+            flush();
+        }
+        logger.info("add products stream completed, {} products accepted", accepted);
+        responseObserver.onCompleted();
+    }
+
+    private void flush() {
+        List<Product> products = batch;
+        batch = new ArrayList<>(batchSize);
+        sink.accept(products);
+        accepted += products.size();
+        responseObserver.onNext(AddProductsAck.newBuilder()
+                                              .setBatchSize(products.size())
+                                              .setAccepted(accepted)
+                                              .setLastId(products.get(products.size() - 1).getId())
+                                              .build());
+    }
+}
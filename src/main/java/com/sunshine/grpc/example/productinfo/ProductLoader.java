@@ -0,0 +1,42 @@
+package com.sunshine.grpc.example.productinfo;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * 产品缓存未命中时的数据来源, 例如数据库或者其他服务.
+ * <p>
+ * 阻塞的实现只需要实现{@link #load(String)}, 它会在缓存的加载线程上执行; 本身是异步的实现(例如调用其他gRPC服务)
+ * 应该覆盖{@link #loadAsync(String, Executor)}, 不占用加载线程.
+ *
+ * @author: hj
+ * @date: 26-10-19 下午2:15
+ */
+@FunctionalInterface
+public interface ProductLoader {
+    /**
+     * 没有后端存储时使用, 未命中即不存在
+     */
+    ProductLoader NONE = id -> null;
+
+    /**
+     * @return id对应的产品, 不存在时返回null
+     */
+    Product load(String id) throws Exception;
+
+    /**
+     * @param executor 缓存的加载线程池
+     * @return 完成时为id对应的产品, 不存在时为null
+     */
+    default CompletableFuture<Product> loadAsync(String id, Executor executor) {
+        CompletableFuture<Product> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                future.complete(load(id));
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+        return future;
+    }
+}
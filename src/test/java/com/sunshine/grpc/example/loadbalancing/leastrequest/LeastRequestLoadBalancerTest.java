@@ -0,0 +1,147 @@
+package com.sunshine.grpc.example.loadbalancing.leastrequest;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sunshine.grpc.example.helloworld.GreeterGrpc;
+import com.sunshine.grpc.example.helloworld.HelloReply;
+import com.sunshine.grpc.example.helloworld.HelloRequest;
+import com.sunshine.grpc.example.loadbalancing.clientsidelb.MultiAddressNameResolverFactory;
+import io.grpc.LoadBalancerRegistry;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.NameResolver;
+import io.grpc.NameResolverProvider;
+import io.grpc.NameResolverRegistry;
+import io.grpc.ServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link LeastRequestLoadBalancer}.
+ *
+ * @author: hj
+ * @date: 26-10-19 下午9:40
+ */
+@RunWith(JUnit4.class)
+public class LeastRequestLoadBalancerTest {
+    @Rule
+    public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+    // 测试专用的scheme, 和其他resolver不冲突
+    private static final String SCHEME = "least-request-test";
+
+    // 自定义的负载均衡需要真实的地址, in-process的channel不支持自定义的name resolver
+    private InetSocketAddress startServer(GreeterGrpc.GreeterImplBase service) throws Exception {
+        int port = grpcCleanup.register(ServerBuilder.forPort(0).directExecutor().addService(service).build().start())
+                              .getPort();
+        return new InetSocketAddress("localhost", port);
+    }
+
+    @Test
+    public void stuckBackendStopsReceivingRequests() throws Exception {
+        AtomicInteger fastCalls = new AtomicInteger();
+        InetSocketAddress fast = startServer(new GreeterGrpc.GreeterImplBase() {
+            @Override
+            public void sayHello(HelloRequest request, StreamObserver<HelloReply> responseObserver) {
+                fastCalls.incrementAndGet();
+                responseObserver.onNext(HelloReply.newBuilder().setMessage("fast").build());
+                responseObserver.onCompleted();
+            }
+        });
+        // 卡住的后端, 不回复
+        List<StreamObserver<HelloReply>> stuck = new CopyOnWriteArrayList<>();
+        InetSocketAddress slow = startServer(new GreeterGrpc.GreeterImplBase() {
+            @Override
+            public void sayHello(HelloRequest request, StreamObserver<HelloReply> responseObserver) {
+                stuck.add(responseObserver);
+            }
+        });
+        // 通过注册表而不是已经废弃的ManagedChannelBuilder.nameResolverFactory指定resolver
+        NameResolverProvider resolver = new FixedAddressesProvider(new MultiAddressNameResolverFactory(fast, slow));
+        NameResolverRegistry.getDefaultRegistry().register(resolver);
+        ManagedChannel channel = grpcCleanup.register(
+                ManagedChannelBuilder.forTarget(SCHEME + ":///servers")
+                                     .defaultServiceConfig(LeastRequestLoadBalancerProvider.serviceConfig())
+                                     .usePlaintext()
+                                     .build());
+        GreeterGrpc.GreeterFutureStub stub = GreeterGrpc.newFutureStub(channel);
+
+        try {
+            for (int i = 0; i < 50; i++) {
+                ListenableFuture<HelloReply> reply = stub.sayHello(HelloRequest.newBuilder().setName("lr").build());
+                try {
+                    assertEquals("fast", reply.get(200, TimeUnit.MILLISECONDS).getMessage());
+                } catch (TimeoutException e) {
+                    // 发给了卡住的后端
+                }
+            }
+            assertEquals(50, fastCalls.get() + stuck.size());
+            // round_robin会给卡住的后端一半的请求
+            assertTrue("stuck backend got " + stuck.size(), stuck.size() <= 2);
+        } finally {
+            NameResolverRegistry.getDefaultRegistry().deregister(resolver);
+            for (StreamObserver<HelloReply> observer : stuck) {
+                observer.onNext(HelloReply.newBuilder().setMessage("slow").build());
+                observer.onCompleted();
+            }
+        }
+    }
+
+    @Test
+    public void registeredAndParsesConfig() {
+        assertTrue(LoadBalancerRegistry.getDefaultRegistry().getProvider(LeastRequestLoadBalancerProvider.POLICY_NAME)
+                instanceof LeastRequestLoadBalancerProvider);
+
+        LeastRequestLoadBalancerProvider provider = new LeastRequestLoadBalancerProvider();
+        assertEquals(new LeastRequestLoadBalancerProvider.LeastRequestConfig(2),
+                provider.parseLoadBalancingPolicyConfig(Collections.emptyMap()).getConfig());
+        // service config中的数字是Double
+        assertEquals(new LeastRequestLoadBalancerProvider.LeastRequestConfig(3),
+                provider.parseLoadBalancingPolicyConfig(ImmutableMap.of("choiceCount", 3.0)).getConfig());
+        NameResolver.ConfigOrError invalid = provider.parseLoadBalancingPolicyConfig(ImmutableMap.of("choiceCount", 1.0));
+        assertNotNull(invalid.getError());
+    }
+
+    private static class FixedAddressesProvider extends NameResolverProvider {
+        private final NameResolver.Factory addresses;
+
+        FixedAddressesProvider(NameResolver.Factory addresses) {
+            this.addresses = addresses;
+        }
+
+        @Override
+        protected boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        protected int priority() {
+            return 5;
+        }
+
+        @Override
+        public NameResolver newNameResolver(URI targetUri, NameResolver.Args args) {
+            return SCHEME.equals(targetUri.getScheme()) ? addresses.newNameResolver(targetUri, args) : null;
+        }
+
+        @Override
+        public String getDefaultScheme() {
+            return SCHEME;
+        }
+    }
+}
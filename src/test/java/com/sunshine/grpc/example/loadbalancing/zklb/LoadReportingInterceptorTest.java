@@ -0,0 +1,72 @@
+package com.sunshine.grpc.example.loadbalancing.zklb;
+
+import com.sunshine.grpc.example.helloworld.GreeterGrpc;
+import com.sunshine.grpc.example.helloworld.HelloRequest;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.testing.GrpcCleanupRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link LoadReportingInterceptor}.
+ *
+ * @author: hj
+ * @date: 26-10-20 上午10:10
+ */
+@RunWith(JUnit4.class)
+public class LoadReportingInterceptorTest {
+    @Rule
+    public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+    private GreeterGrpc.GreeterBlockingStub start(ServerInterceptor... interceptors) throws Exception {
+        String serverName = InProcessServerBuilder.generateName();
+        grpcCleanup.register(InProcessServerBuilder.forName(serverName).directExecutor()
+                .addService(ServerInterceptors.intercept(new HelloWorldServer.GreeterImpl(), interceptors))
+                .build().start());
+        return GreeterGrpc.newBlockingStub(
+                grpcCleanup.register(InProcessChannelBuilder.forName(serverName).directExecutor().build()));
+    }
+
+    @Test
+    public void countsCompletedCalls() throws Exception {
+        LoadReportingInterceptor load = new LoadReportingInterceptor();
+        GreeterGrpc.GreeterBlockingStub stub = start(load);
+
+        stub.sayHello(HelloRequest.newBuilder().setName("load").build());
+        assertEquals(0, load.inFlight());
+        assertTrue(load.ewmaLatencyMs() > 0);
+    }
+
+    @Test
+    public void releasesCallsWhoseStartFails() throws Exception {
+        LoadReportingInterceptor load = new LoadReportingInterceptor();
+        ServerInterceptor failing = new ServerInterceptor() {
+            @Override
+            public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                                                                         Metadata headers,
+                                                                         ServerCallHandler<ReqT, RespT> next) {
+                throw new IllegalStateException("start failed");
+            }
+        };
+        // 最后一个拦截器最先执行, load在failing的外层
+        GreeterGrpc.GreeterBlockingStub stub = start(failing, load);
+
+        try {
+            stub.sayHello(HelloRequest.newBuilder().setName("load").build());
+            fail();
+        } catch (StatusRuntimeException expected) {
+        }
+        assertEquals(0, load.inFlight());
+    }
+}
@@ -0,0 +1,308 @@
+package com.sunshine.grpc.example.loadbalancing.zklb;
+
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.NameResolver;
+import io.grpc.Status;
+import io.grpc.SynchronizationContext;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link ZkNameResolver}, 使用进程内的zookeeper.
+ *
+ * @author: hj
+ * @date: 26-10-19 下午6:00
+ */
+@RunWith(JUnit4.class)
+public class ZkNameResolverTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private ServerCnxnFactory zkFactory;
+    private ZooKeeper admin;
+    private Path snapshotDir;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService offload = Executors.newSingleThreadExecutor();
+    private final SynchronizationContext syncContext = new SynchronizationContext(
+            (thread, e) -> e.printStackTrace());
+    private final BlockingQueue<List<String>> updates = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Status> errors = new LinkedBlockingQueue<>();
+    private final BlockingQueue<NameResolver.ResolutionResult> results = new LinkedBlockingQueue<>();
+    private ZkNameResolverProvider provider;
+    private NameResolver resolver;
+
+    @Before
+    public void setUp() throws Exception {
+        File zkDir = folder.newFolder("zk");
+        ZooKeeperServer zkServer = new ZooKeeperServer(zkDir, zkDir, 500);
+        zkFactory = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", 0), 100);
+        zkFactory.startup(zkServer);
+        CountDownLatch connected = new CountDownLatch(1);
+        admin = new ZooKeeper(zkAddress(), 5000, event -> connected.countDown());
+        assertTrue(connected.await(10, TimeUnit.SECONDS));
+        snapshotDir = folder.newFolder("snapshots").toPath();
+        provider = new ZkNameResolverProvider(snapshotDir, 50);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (resolver != null) {
+            syncContext.execute(resolver::shutdown);
+        }
+        admin.close();
+        zkFactory.shutdown();
+        timer.shutdownNow();
+        offload.shutdownNow();
+    }
+
+    private String zkAddress() {
+        return "127.0.0.1:" + zkFactory.getLocalPort();
+    }
+
+    private NameResolver.Args args() {
+        return NameResolver.Args.newBuilder()
+                                .setDefaultPort(443)
+                                .setProxyDetector(address -> null)
+                                .setSynchronizationContext(syncContext)
+                                .setScheduledExecutorService(timer)
+                                .setOffloadExecutor(offload)
+                                .setServiceConfigParser(new NameResolver.ServiceConfigParser() {
+                                    @Override
+                                    public NameResolver.ConfigOrError parseServiceConfig(Map<String, ?> config) {
+                                        return null;
+                                    }
+                                })
+                                .build();
+    }
+
+    private void start(String target) throws Exception {
+        resolver = provider.newNameResolver(new URI(target), args());
+        syncContext.execute(() -> resolver.start(new NameResolver.Listener2() {
+            @Override
+            public void onResult(NameResolver.ResolutionResult result) {
+                results.add(result);
+                List<String> addresses = new ArrayList<>();
+                for (EquivalentAddressGroup server : result.getAddresses()) {
+                    InetSocketAddress address = (InetSocketAddress) server.getAddresses().get(0);
+                    addresses.add(address.getHostString() + ":" + address.getPort());
+                }
+                Collections.sort(addresses);
+                updates.add(addresses);
+            }
+
+            @Override
+            public void onError(Status error) {
+                errors.add(error);
+            }
+        }));
+    }
+
+    // resolver的字段只能在syncContext上读取
+    private ZooKeeper currentZooKeeper() throws InterruptedException {
+        BlockingQueue<Optional<ZooKeeper>> current = new LinkedBlockingQueue<>();
+        syncContext.execute(() -> current.add(Optional.ofNullable(((ZkNameResolver) resolver).getZooKeeper())));
+        return current.take().orElse(null);
+    }
+
+    private void register(String server) throws Exception {
+        register(server, new byte[0]);
+    }
+
+    private void register(String server, byte[] data) throws Exception {
+        if (admin.exists(ZkNameResolver.PATH, false) == null) {
+            admin.create(ZkNameResolver.PATH, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        }
+        admin.create(ZkNameResolver.PATH + "/" + server, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+    }
+
+    private static ServerLoad load(NameResolver.ResolutionResult result) {
+        return result.getAddresses().get(0).getAttributes().get(ServerLoad.ATTR_KEY);
+    }
+
+    @Test
+    public void resolvesAndFollowsRegisteredServers() throws Exception {
+        start("zk://" + zkAddress());
+        // 服务路径还不存在, 注册之后才会有地址
+        assertEquals(Status.Code.UNAVAILABLE, errors.poll(10, TimeUnit.SECONDS).getCode());
+        register("127.0.0.1:50051");
+        assertEquals(Arrays.asList("127.0.0.1:50051"), updates.poll(10, TimeUnit.SECONDS));
+
+        register("127.0.0.1:50052");
+        assertEquals(Arrays.asList("127.0.0.1:50051", "127.0.0.1:50052"), updates.poll(10, TimeUnit.SECONDS));
+
+        // 快照异步写入
+        Path snapshot;
+        try (java.util.stream.Stream<Path> files = Files.list(snapshotDir)) {
+            snapshot = files.filter(file -> file.toString().endsWith(".endpoints")).findFirst().get();
+        }
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (Files.readAllLines(snapshot, StandardCharsets.UTF_8).size() < 2
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(2, Files.readAllLines(snapshot, StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    public void coalescesRollingDeployIntoFewUpdates() throws Exception {
+        register("127.0.0.1:50000");
+        start("zk://" + zkAddress());
+        assertEquals(1, updates.poll(10, TimeUnit.SECONDS).size());
+
+        // 连续注册, 去抖窗口内的事件合并成一次获取
+        for (int port = 50001; port < 50050; port++) {
+            register("127.0.0.1:" + port);
+        }
+        List<String> last = null;
+        long deadline = System.currentTimeMillis() + 10_000;
+        while ((last == null || last.size() < 50) && System.currentTimeMillis() < deadline) {
+            List<String> update = updates.poll(100, TimeUnit.MILLISECONDS);
+            if (update != null) {
+                last = update;
+            }
+        }
+        assertEquals(50, last.size());
+        ZkResolverStats stats = provider.getStats();
+        assertTrue(stats.toString(), stats.updatesPushed() < 50);
+        assertTrue(stats.toString(), stats.fetches() <= stats.watchEvents() + 1);
+    }
+
+    @Test
+    public void skipsUpdateWhenMembershipIsUnchanged() throws Exception {
+        register("127.0.0.1:50051");
+        String name = ("127.0.0.1:" + zkFactory.getLocalPort() + ZkNameResolver.PATH)
+                .replaceAll("[^A-Za-z0-9._-]", "_") + ".endpoints";
+        new EndpointSnapshot(snapshotDir.resolve(name)).save(Arrays.asList("127.0.0.1:50051"));
+
+        start("zk://" + zkAddress());
+        assertEquals(Arrays.asList("127.0.0.1:50051"), updates.poll());
+        // zookeeper返回和快照相同的列表, 不再推送
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (provider.getStats().updatesSkipped() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, provider.getStats().updatesSkipped());
+        assertNull(updates.poll());
+    }
+
+    @Test
+    public void recreatesSessionAndWatchAfterExpiry() throws Exception {
+        register("127.0.0.1:50051");
+        start("zk://" + zkAddress());
+        assertEquals(Arrays.asList("127.0.0.1:50051"), updates.poll(10, TimeUnit.SECONDS));
+
+        // 用同一个会话id连接再关闭, 服务端会让resolver的会话过期
+        ZooKeeper expiring = currentZooKeeper();
+        CountDownLatch connected = new CountDownLatch(1);
+        ZooKeeper duplicate = new ZooKeeper(zkAddress(), ZkNameResolver.TIMEOUT_MS, event -> connected.countDown(),
+                expiring.getSessionId(), expiring.getSessionPasswd());
+        assertTrue(connected.await(10, TimeUnit.SECONDS));
+        duplicate.close();
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        ZooKeeper recreated = expiring;
+        while ((recreated == expiring || recreated == null) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            recreated = currentZooKeeper();
+        }
+        assertNotNull(recreated);
+        assertNotSame(expiring, recreated);
+
+        // 新会话上重新设置了watch
+        register("127.0.0.1:50052");
+        assertEquals(Arrays.asList("127.0.0.1:50051", "127.0.0.1:50052"), updates.poll(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void serverReRegistersAfterSessionExpiry() throws Exception {
+        String node = ZkNameResolver.PATH + "/127.0.0.1:50061";
+        ServerLoad current = new ServerLoad(4, 3, 1.5);
+        HelloWorldServer.ZookeeperConnection connection = new HelloWorldServer.ZookeeperConnection();
+        try {
+            assertTrue(connection.connect("zk://" + zkAddress(), "127.0.0.1", "50061", new ServerLoad(4, 0, 0)));
+            connection.startReporting(() -> current, 3_600_000);
+            ZooKeeper expiring = connection.getZooKeeper();
+            assertEquals(expiring.getSessionId(), admin.exists(node, false).getEphemeralOwner());
+
+            // 会话过期后临时节点被删除, 服务端用新的会话和当前的负载重新注册
+            CountDownLatch connected = new CountDownLatch(1);
+            ZooKeeper duplicate = new ZooKeeper(zkAddress(), 5000, event -> connected.countDown(),
+                    expiring.getSessionId(), expiring.getSessionPasswd());
+            assertTrue(connected.await(10, TimeUnit.SECONDS));
+            duplicate.close();
+
+            long deadline = System.currentTimeMillis() + 10_000;
+            Stat stat = admin.exists(node, false);
+            while ((stat == null || stat.getEphemeralOwner() == expiring.getSessionId())
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+                stat = admin.exists(node, false);
+            }
+            assertNotNull(stat);
+            assertEquals(connection.getZooKeeper().getSessionId(), stat.getEphemeralOwner());
+            assertEquals(current, ServerLoad.parse(admin.getData(node, false, null)));
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void carriesPublishedLoadAsAddressAttributes() throws Exception {
+        register("127.0.0.1:50051", new ServerLoad(4, 0, 0).toBytes());
+        start("zk://" + zkAddress());
+        assertEquals(new ServerLoad(4, 0, 0), load(results.poll(10, TimeUnit.SECONDS)));
+
+        // 只有负载变化, 成员不变
+        admin.setData(ZkNameResolver.PATH + "/127.0.0.1:50051", new ServerLoad(4, 7, 12.5).toBytes(), -1);
+        assertEquals(new ServerLoad(4, 7, 12.5), load(results.poll(10, TimeUnit.SECONDS)));
+
+        // 旧版本服务端写入的时间戳不是负载
+        admin.setData(ZkNameResolver.PATH + "/127.0.0.1:50051", "2021.08.12.11.37.00".getBytes(), -1);
+        assertNull(load(results.poll(10, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    public void startsFromSnapshotWhileZookeeperIsUnreachable() throws Exception {
+        // 没有zookeeper监听的端口
+        String target = "zk://127.0.0.1:1";
+        String name = ("127.0.0.1:1" + ZkNameResolver.PATH).replaceAll("[^A-Za-z0-9._-]", "_") + ".endpoints";
+        new EndpointSnapshot(snapshotDir.resolve(name)).save(Arrays.asList("127.0.0.1:50051", "127.0.0.1:50052"));
+
+        start(target);
+        // start不等待zookeeper, 快照中的地址立即可用
+        assertEquals(Arrays.asList("127.0.0.1:50051", "127.0.0.1:50052"), updates.poll());
+    }
+}
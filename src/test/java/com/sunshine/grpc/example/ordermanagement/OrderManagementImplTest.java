@@ -0,0 +1,1002 @@
+package com.sunshine.grpc.example.ordermanagement;
+
+import com.google.common.collect.Iterables;
+import com.google.protobuf.FloatValue;
+import com.google.protobuf.StringValue;
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link OrderManagementImpl}.
+ *
+ * @author: hj
+ * @date: 26-10-17 上午10:40
+ */
+@RunWith(JUnit4.class)
+public class OrderManagementImplTest {
+    @Rule
+    public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+    private OrderManagementGrpc.OrderManagementBlockingStub blockingStub;
+
+    @Before
+    public void setUp() throws Exception {
+        String serverName = InProcessServerBuilder.generateName();
+        grpcCleanup.register(InProcessServerBuilder
+                .forName(serverName).directExecutor().addService(new OrderManagementImpl()).build().start());
+        blockingStub = OrderManagementGrpc.newBlockingStub(
+                grpcCleanup.register(InProcessChannelBuilder.forName(serverName).directExecutor().build()));
+    }
+
+    private static StringValue value(String value) {
+        return StringValue.newBuilder().setValue(value).build();
+    }
+
+    private static Order versioned(Order order, long version) {
+        return order.toBuilder().setVersion(version).build();
+    }
+
+    private static List<String> sorted(List<String> ids) {
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static List<String> ids(Iterator<Order> orders) {
+        List<String> ids = new ArrayList<>();
+        orders.forEachRemaining(order -> ids.add(order.getId()));
+        return ids;
+    }
+
+    @Test
+    public void addOrder_thenGetOrder() {
+        Order order = Order.newBuilder().setId("201").addItems("Kindle").setDestination("Seattle, WA").build();
+        blockingStub.addOrder(order);
+
+        assertEquals(versioned(order, 1), blockingStub.getOrder(value("201")));
+    }
+
+    @Test
+    public void getOrders_reportsMissesInline() {
+        GetOrdersResponse response = blockingStub.getOrders(
+                GetOrdersRequest.newBuilder().addIds("103").addIds("999").addIds("105").build());
+
+        assertEquals(3, response.getResultsCount());
+        assertTrue(response.getResults(0).getFound());
+        assertEquals("103", response.getResults(0).getOrder().getId());
+        assertFalse(response.getResults(1).getFound());
+        assertEquals("999", response.getResults(1).getId());
+        assertEquals("105", response.getResults(2).getOrder().getId());
+    }
+
+    @Test
+    public void getOrders_rejectsTooManyIds() {
+        GetOrdersRequest.Builder request = GetOrdersRequest.newBuilder();
+        for (int i = 0; i <= OrderManagementImpl.MAX_IDS_PER_REQUEST; i++) {
+            request.addIds(String.valueOf(i));
+        }
+        try {
+            blockingStub.getOrders(request.build());
+            fail();
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+        }
+    }
+
+    @Test
+    public void getOrdersStream_readsRequestsOnlyAsFastAsTheClientReads() throws Exception {
+        // 统计服务端处理的请求数
+        AtomicInteger lookups = new AtomicInteger();
+        OrderStore store = new ConcurrentOrderStore() {
+            @Override
+            public List<Order> getAll(List<String> ids) {
+                lookups.incrementAndGet();
+                return super.getAll(ids);
+            }
+        };
+        store.put(Order.newBuilder().setId("1").build());
+        String serverName = InProcessServerBuilder.generateName();
+        grpcCleanup.register(InProcessServerBuilder.forName(serverName).directExecutor()
+                .addService(new OrderManagementImpl(store, ShipmentBatchConfig.fromSystemProperties())).build().start());
+        OrderManagementGrpc.OrderManagementStub asyncStub = OrderManagementGrpc.newStub(
+                grpcCleanup.register(InProcessChannelBuilder.forName(serverName).directExecutor().build()));
+
+        List<GetOrdersResponse> received = Collections.synchronizedList(new ArrayList<>());
+        AtomicReference<Status> status = new AtomicReference<>();
+        AtomicReference<ClientCallStreamObserver<GetOrdersRequest>> call = new AtomicReference<>();
+        StreamObserver<GetOrdersRequest> requests = asyncStub.getOrdersStream(
+                new ClientResponseObserver<GetOrdersRequest, GetOrdersResponse>() {
+                    @Override
+                    public void beforeStart(ClientCallStreamObserver<GetOrdersRequest> requestStream) {
+                        requestStream.disableAutoRequestWithInitial(1);
+                        call.set(requestStream);
+                    }
+
+                    @Override
+                    public void onNext(GetOrdersResponse value) {
+                        received.add(value);
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        status.set(Status.fromThrowable(t));
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        status.set(Status.OK);
+                    }
+                });
+        for (int i = 0; i < 5; i++) {
+            requests.onNext(GetOrdersRequest.newBuilder().addIds("1").build());
+        }
+
+        // 客户端只读取了一个响应, 服务端不再读取请求
+        assertEquals(1, received.size());
+        Thread.sleep(100);
+        assertEquals(1, lookups.get());
+
+        call.get().request(2);
+        assertEquals(3, received.size());
+        assertEquals(3, lookups.get());
+
+        // 超过上限的请求结束整个调用
+        GetOrdersRequest.Builder tooMany = GetOrdersRequest.newBuilder();
+        for (int i = 0; i <= OrderManagementImpl.MAX_IDS_PER_REQUEST; i++) {
+            tooMany.addIds(String.valueOf(i));
+        }
+        call.get().request(10);
+        requests.onNext(tooMany.build());
+        assertEquals(5, received.size());
+        assertEquals(Status.Code.INVALID_ARGUMENT, status.get().getCode());
+    }
+
+    @Test
+    public void offHeapStore_servesSerializedOrders() throws Exception {
+        OrderStore store = new OffHeapOrderStore(64 * 1024);
+        OrderManagementImpl service = new OrderManagementImpl(store, ShipmentBatchConfig.fromSystemProperties());
+        String serverName = InProcessServerBuilder.generateName();
+        grpcCleanup.register(InProcessServerBuilder.forName(serverName).directExecutor()
+                .addService(service.bindSerializedService()).build().start());
+        OrderManagementGrpc.OrderManagementBlockingStub stub = OrderManagementGrpc.newBlockingStub(
+                grpcCleanup.register(InProcessChannelBuilder.forName(serverName).directExecutor().build()));
+
+        // 足够多的订单, 覆盖索引扩容和slab切换
+        for (int i = 0; i < 3000; i++) {
+            store.put(Order.newBuilder().setId(String.valueOf(i)).addItems("item-" + i).build());
+        }
+        Order updated = Order.newBuilder().setId("42").addItems("Kindle").setPrice(99).build();
+        stub.addOrder(updated);
+
+        assertEquals(3000, store.size());
+        assertEquals(versioned(updated, 2), stub.getOrder(value("42")));
+        assertEquals("item-2999", stub.getOrder(value("2999")).getItems(0));
+        assertEquals(Arrays.asList("42"), ids(stub.searchOrders(value("Kindle"))));
+        try {
+            stub.getOrder(value("missing"));
+            fail();
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.Code.NOT_FOUND, e.getStatus().getCode());
+        }
+    }
+
+    @Test
+    public void serializedGetOrder_followsUpdates() throws Exception {
+        OrderManagementImpl service = new OrderManagementImpl();
+        String serverName = InProcessServerBuilder.generateName();
+        grpcCleanup.register(InProcessServerBuilder.forName(serverName).directExecutor()
+                .addService(service.bindSerializedService()).build().start());
+        OrderManagementGrpc.OrderManagementBlockingStub stub = OrderManagementGrpc.newBlockingStub(
+                grpcCleanup.register(InProcessChannelBuilder.forName(serverName).directExecutor().build()));
+
+        Order original = stub.getOrder(value("102"));
+        // 第二次读取发送的是缓存的字节
+        assertEquals(original, stub.getOrder(value("102")));
+        Order updated = original.toBuilder().setPrice(1.0f).build();
+        stub.addOrder(updated);
+        assertEquals(versioned(updated, 2), stub.getOrder(value("102")));
+    }
+
+    @Test
+    public void searchOrders_matchesItemSubstring() {
+        assertEquals(Arrays.asList("102", "104"), ids(blockingStub.searchOrders(value("Google"))));
+        assertEquals(Arrays.asList("105", "106"), ids(blockingStub.searchOrders(value("Echo"))));
+        assertTrue(ids(blockingStub.searchOrders(value("Nokia"))).isEmpty());
+    }
+
+    @Test
+    public void searchOrders_shortQueryFallsBackToScan() {
+        assertEquals(Arrays.asList("106"), ids(blockingStub.searchOrders(value("XS"))));
+    }
+
+    @Test
+    public void searchOrders_producesOnlyWhatTheClientRequests() throws Exception {
+        // 统计服务端从存储中读取的订单数, 也就是游标前进了多少
+        AtomicInteger reads = new AtomicInteger();
+        OrderStore store = new ConcurrentOrderStore() {
+            @Override
+            public Order get(String id) {
+                reads.incrementAndGet();
+                return super.get(id);
+            }
+        };
+        for (int i = 0; i < 1000; i++) {
+            store.put(Order.newBuilder().setId(String.format("%04d", i)).addItems("Kindle").build());
+        }
+        String serverName = InProcessServerBuilder.generateName();
+        grpcCleanup.register(InProcessServerBuilder.forName(serverName).directExecutor()
+                .addService(new OrderManagementImpl(store, ShipmentBatchConfig.fromSystemProperties())).build().start());
+        OrderManagementGrpc.OrderManagementStub asyncStub = OrderManagementGrpc.newStub(
+                grpcCleanup.register(InProcessChannelBuilder.forName(serverName).directExecutor().build()));
+
+        List<Order> received = Collections.synchronizedList(new ArrayList<>());
+        AtomicReference<ClientCallStreamObserver<StringValue>> call = new AtomicReference<>();
+        reads.set(0);
+        asyncStub.searchOrders(value("Kindle"), new ClientResponseObserver<StringValue, Order>() {
+            @Override
+            public void beforeStart(ClientCallStreamObserver<StringValue> requestStream) {
+                requestStream.disableAutoRequestWithInitial(2);
+                call.set(requestStream);
+            }
+
+            @Override
+            public void onNext(Order value) {
+                received.add(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+
+        // 客户端没有更多的请求额度时服务端停下来, 最多为了hasNext多读一条
+        assertEquals(2, received.size());
+        int readsWhileIdle = reads.get();
+        assertTrue(readsWhileIdle + " reads", readsWhileIdle <= 3);
+        Thread.sleep(100);
+        assertEquals(2, received.size());
+        assertEquals(readsWhileIdle, reads.get());
+
+        call.get().request(3);
+        assertEquals(5, received.size());
+        assertEquals("0004", received.get(4).getId());
+        assertTrue(reads.get() + " reads", reads.get() <= 6);
+
+        // 取消之后再也不会读取和发送
+        call.get().cancel("enough", null);
+        int readsAtCancel = reads.get();
+        call.get().request(100);
+        Thread.sleep(100);
+        assertEquals(5, received.size());
+        assertEquals(readsAtCancel, reads.get());
+    }
+
+    @Test
+    public void searchOrders_streamsLargeResultWithFlowControl() {
+        for (int i = 0; i < 5000; i++) {
+            blockingStub.addOrder(Order.newBuilder().setId("bulk-" + i).addItems("Kindle Paperwhite").build());
+        }
+        assertEquals(5000, ids(blockingStub.searchOrders(value("Kindle"))).size());
+    }
+
+    @Test
+    public void listOrdersByDestination_followsUpdates() {
+        assertEquals(Arrays.asList("103", "105"), ids(blockingStub.listOrdersByDestination(value("San Jose, CA"))));
+
+        Order moved = blockingStub.getOrder(value("103")).toBuilder().setDestination("Seattle, WA").build();
+        blockingStub.addOrder(moved);
+        assertEquals(Arrays.asList("105"), ids(blockingStub.listOrdersByDestination(value("San Jose, CA"))));
+        assertEquals(Arrays.asList("103"), ids(blockingStub.listOrdersByDestination(value("Seattle, WA"))));
+        assertFalse(blockingStub.listOrdersByDestination(value("Nowhere")).hasNext());
+    }
+
+    @Test
+    public void queryOrders_combinesPredicates() {
+        OrderQuery mountainView = OrderQuery.newBuilder()
+                                            .setDestination("Mountain View, CA")
+                                            .setMinPrice(FloatValue.of(100))
+                                            .setMaxPrice(FloatValue.of(500))
+                                            .build();
+        // 结果顺序取决于执行计划, 这里排序后比较
+        assertEquals(Arrays.asList("104", "106"), sorted(ids(blockingStub.queryOrders(mountainView))));
+        assertEquals(Arrays.asList("106"), ids(blockingStub.queryOrders(
+                mountainView.toBuilder().setItemContains("Echo").build())));
+        assertEquals(Arrays.asList("103", "104", "106"), sorted(ids(blockingStub.queryOrders(
+                OrderQuery.newBuilder().setMinPrice(FloatValue.of(300)).setMaxPrice(FloatValue.of(400)).build()))));
+
+        blockingStub.addOrder(blockingStub.getOrder(value("104")).toBuilder().setPrice(50).build());
+        assertEquals(Arrays.asList("106"), ids(blockingStub.queryOrders(mountainView)));
+
+        try {
+            blockingStub.queryOrders(OrderQuery.newBuilder().setMinPrice(FloatValue.of(500))
+                                               .setMaxPrice(FloatValue.of(100)).build()).hasNext();
+            fail();
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+        }
+    }
+
+    @Test
+    public void priceIndex_followsUpdates() {
+        OrderStore store = new ConcurrentOrderStore();
+        PriceIndex index = new PriceIndex();
+        store.addListener(index);
+        for (int i = 0; i < 100; i++) {
+            store.put(Order.newBuilder().setId(String.valueOf(i)).setPrice(i).build());
+        }
+        assertEquals(Arrays.asList("10", "11", "12"), index.orderIds(10f, 12f));
+        assertEquals(100, index.orderIds(null, null).size());
+
+        store.put(Order.newBuilder().setId("11").setPrice(99.5f).build());
+        store.put(Order.newBuilder().setId("50").setPrice(10.5f).build());
+        assertEquals(Arrays.asList("10", "50", "12"), index.orderIds(10f, 12f));
+        assertEquals(Arrays.asList("99", "11"), index.orderIds(99f, null));
+        assertTrue(index.orderIds(200f, null).isEmpty());
+    }
+
+    @Test
+    public void priceIndex_keepsUpdatesRacingWithMerges() throws Exception {
+        OrderStore store = new ConcurrentOrderStore();
+        PriceIndex index = new PriceIndex();
+        store.addListener(index);
+        int writers = 4;
+        int idsPerWriter = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(writers + 2);
+        CountDownLatch written = new CountDownLatch(writers);
+        AtomicBoolean stop = new AtomicBoolean();
+        for (int r = 0; r < 2; r++) {
+            // 查询线程不停地触发归并
+            executor.execute(() -> {
+                while (!stop.get()) {
+                    index.orderIds(null, null).size();
+                }
+            });
+        }
+        for (int w = 0; w < writers; w++) {
+            int base = w * idsPerWriter;
+            executor.execute(() -> {
+                for (int round = 0; round < 200; round++) {
+                    for (int i = 0; i < idsPerWriter; i++) {
+                        store.put(Order.newBuilder().setId(String.valueOf(base + i)).setPrice(round).build());
+                    }
+                }
+                written.countDown();
+            });
+        }
+        assertTrue(written.await(30, TimeUnit.SECONDS));
+        stop.set(true);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(writers * idsPerWriter, index.orderIds(null, null).size());
+        assertEquals(writers * idsPerWriter, index.orderIds(199f, 199f).size());
+    }
+
+    @Test
+    public void watchOrders_streamsAndResumesChanges() throws Exception {
+        // watch不会自己结束, 测试结束时取消
+        Context.CancellableContext context = Context.current().withCancellation();
+        try {
+            context.run(this::watchAndResume);
+        } finally {
+            context.cancel(null);
+        }
+    }
+
+    private void watchAndResume() {
+        Iterator<OrderChange> watch = blockingStub.watchOrders(WatchOrdersRequest.getDefaultInstance());
+        Order first = Order.newBuilder().setId("301").addItems("Kindle").build();
+        Order second = Order.newBuilder().setId("302").addItems("Echo Dot").build();
+        blockingStub.addOrder(first);
+        blockingStub.addOrder(second);
+
+        OrderChange change = watch.next();
+        assertEquals(OrderChange.Type.UPSERT, change.getType());
+        assertEquals(versioned(first, 1), change.getOrder());
+        assertEquals(versioned(second, 1), watch.next().getOrder());
+
+        // 从第一个变更之后续传
+        Iterator<OrderChange> resumed = blockingStub.watchOrders(
+                WatchOrdersRequest.newBuilder().setAfterSequence(change.getSequence()).build());
+        OrderChange next = resumed.next();
+        assertEquals(change.getSequence() + 1, next.getSequence());
+        assertEquals(versioned(second, 1), next.getOrder());
+    }
+
+    @Test
+    public void watchOrders_resyncsWhenChangesWereDropped() throws Exception {
+        OrderStore store = new ConcurrentOrderStore();
+        OrderManagementImpl service = new OrderManagementImpl(store, ShipmentBatchConfig.fromSystemProperties());
+        String serverName = InProcessServerBuilder.generateName();
+        grpcCleanup.register(InProcessServerBuilder.forName(serverName).directExecutor()
+                .addService(service).build().start());
+        OrderManagementGrpc.OrderManagementBlockingStub stub = OrderManagementGrpc.newBlockingStub(
+                grpcCleanup.register(InProcessChannelBuilder.forName(serverName).directExecutor().build()));
+
+        int writes = OrderChangeFeed.DEFAULT_CAPACITY + 10;
+        for (int i = 0; i < writes; i++) {
+            store.put(Order.newBuilder().setId(String.valueOf(i)).build());
+        }
+        Context.CancellableContext context = Context.current().withCancellation();
+        try {
+            Iterator<OrderChange> watch = context.call(() -> stub.watchOrders(
+                    WatchOrdersRequest.newBuilder().setAfterSequence(1).build()));
+            OrderChange resync = watch.next();
+            assertEquals(OrderChange.Type.RESYNC, resync.getType());
+            assertEquals(writes, resync.getSequence());
+
+            store.put(Order.newBuilder().setId("new").build());
+            OrderChange change = watch.next();
+            assertEquals(OrderChange.Type.UPSERT, change.getType());
+            assertEquals(writes + 1, change.getSequence());
+            assertEquals("new", change.getOrder().getId());
+        } finally {
+            context.cancel(null);
+        }
+    }
+
+    @Test
+    public void watchOrders_deliversEveryConcurrentWriteInSequence() throws Exception {
+        OrderStore store = new ConcurrentOrderStore();
+        OrderManagementImpl service = new OrderManagementImpl(store, ShipmentBatchConfig.fromSystemProperties());
+        String serverName = InProcessServerBuilder.generateName();
+        grpcCleanup.register(InProcessServerBuilder.forName(serverName).directExecutor()
+                .addService(service).build().start());
+        OrderManagementGrpc.OrderManagementBlockingStub stub = OrderManagementGrpc.newBlockingStub(
+                grpcCleanup.register(InProcessChannelBuilder.forName(serverName).directExecutor().build()));
+
+        Context.CancellableContext context = Context.current().withCancellation();
+        try {
+            Iterator<OrderChange> watch = context.call(() -> stub.watchOrders(WatchOrdersRequest.getDefaultInstance()));
+            // 不同id的写入并发分配序号和发布, watcher按序号连续收到每一个变更
+            int writers = 8;
+            int writesPerWriter = 200;
+            ExecutorService executor = Executors.newFixedThreadPool(writers);
+            for (int w = 0; w < writers; w++) {
+                int writer = w;
+                executor.execute(() -> {
+                    for (int i = 0; i < writesPerWriter; i++) {
+                        store.put(Order.newBuilder().setId(writer + "-" + i).build());
+                    }
+                });
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+            List<String> ids = new ArrayList<>();
+            for (int i = 1; i <= writers * writesPerWriter; i++) {
+                OrderChange change = watch.next();
+                assertEquals(OrderChange.Type.UPSERT, change.getType());
+                assertEquals(i, change.getSequence());
+                ids.add(change.getOrder().getId());
+            }
+            assertEquals(writers * writesPerWriter, new HashSet<>(ids).size());
+        } finally {
+            context.cancel(null);
+        }
+    }
+
+    @Test
+    public void searchOrdersPaged_walksAllPages() {
+        SearchOrdersRequest.Builder request = SearchOrdersRequest.newBuilder().setQuery("Apple").setPageSize(1);
+        List<String> ids = new ArrayList<>();
+        int pages = 0;
+        do {
+            SearchOrdersResponse page = blockingStub.searchOrdersPaged(request.build());
+            page.getOrdersList().forEach(order -> ids.add(order.getId()));
+            request.setPageToken(page.getNextPageToken());
+            pages++;
+        } while (!request.getPageToken().isEmpty());
+
+        assertEquals(Arrays.asList("103", "106"), ids);
+        assertEquals(3, pages);
+    }
+
+    @Test
+    public void processOrders_flushesOnLinger() throws Exception {
+        OrderStore store = new ConcurrentOrderStore();
+        store.put(Order.newBuilder().setId("1").setDestination("San Jose, CA").build());
+        store.put(Order.newBuilder().setId("2").setDestination("San Jose, CA").build());
+        String serverName = InProcessServerBuilder.generateName();
+        ShipmentBatchConfig config = new ShipmentBatchConfig(100, 50, Long.MAX_VALUE);
+        // 刷新发生在定时器线程上, 这里不能用directExecutor
+        grpcCleanup.register(InProcessServerBuilder.forName(serverName)
+                .addService(new OrderManagementImpl(store, config)).build().start());
+        OrderManagementGrpc.OrderManagementStub asyncStub = OrderManagementGrpc.newStub(
+                grpcCleanup.register(InProcessChannelBuilder.forName(serverName).build()));
+
+        BlockingQueue<CombinedShipment> shipments = new LinkedBlockingQueue<>();
+        StreamObserver<StringValue> requests = asyncStub.processOrders(new StreamObserver<CombinedShipment>() {
+            @Override
+            public void onNext(CombinedShipment value) {
+                shipments.add(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+        requests.onNext(value("1"));
+        requests.onNext(value("2"));
+
+        // 没有结束请求流, 批次也没有满, 只能是等待时间到了触发的刷新
+        CombinedShipment shipment = shipments.poll(5, TimeUnit.SECONDS);
+        assertNotNull(shipment);
+        assertEquals(2, shipment.getOrderListCount());
+        requests.onCompleted();
+    }
+
+    @Test
+    public void processOrders_combinesByDestination() throws Exception {
+        OrderManagementGrpc.OrderManagementStub asyncStub = OrderManagementGrpc.newStub(blockingStub.getChannel());
+        List<CombinedShipment> shipments = new ArrayList<>();
+        CountDownLatch completed = new CountDownLatch(1);
+        StreamObserver<StringValue> requests = asyncStub.processOrders(new StreamObserver<CombinedShipment>() {
+            @Override
+            public void onNext(CombinedShipment value) {
+                shipments.add(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onCompleted() {
+                completed.countDown();
+            }
+        });
+        // 默认批次大小为3, 102和104的目的地相同
+        requests.onNext(value("102"));
+        requests.onNext(value("103"));
+        requests.onNext(value("104"));
+        requests.onCompleted();
+
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        assertEquals(2, shipments.size());
+        assertEquals("Mountain View, CA", shipments.get(0).getOrderList(0).getDestination());
+        assertEquals(Arrays.asList("102", "104"), ids(shipments.get(0).getOrderListList().iterator()));
+        assertEquals(Arrays.asList("103"), ids(shipments.get(1).getOrderListList().iterator()));
+        assertNotEquals(shipments.get(0).getId(), shipments.get(1).getId());
+    }
+
+    @Test
+    public void updateOrders_capsReportedIds() throws Exception {
+        OrderManagementGrpc.OrderManagementStub asyncStub = OrderManagementGrpc.newStub(blockingStub.getChannel());
+        BlockingQueue<StringValue> replies = new LinkedBlockingQueue<>();
+        StreamObserver<Order> requests = asyncStub.updateOrders(new StreamObserver<StringValue>() {
+            @Override
+            public void onNext(StringValue value) {
+                replies.add(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+        for (int i = 0; i < OrderManagementImpl.MAX_REPORTED_IDS + 50; i++) {
+            requests.onNext(Order.newBuilder().setId("u" + i).build());
+        }
+        requests.onCompleted();
+
+        String reply = replies.poll(5, TimeUnit.SECONDS).getValue();
+        assertTrue(reply.startsWith("Update Order Ids: u0,u1,"));
+        assertTrue(reply.endsWith("... 50 more"));
+        assertEquals("u149", blockingStub.getOrder(value("u149")).getId());
+    }
+
+    @Test
+    public void updateOrdersStream_acksEachBatch() throws Exception {
+        OrderManagementGrpc.OrderManagementStub asyncStub = OrderManagementGrpc.newStub(blockingStub.getChannel());
+        List<UpdateOrdersAck> acks = new ArrayList<>();
+        CountDownLatch completed = new CountDownLatch(1);
+        StreamObserver<Order> requests = asyncStub.updateOrdersStream(new StreamObserver<UpdateOrdersAck>() {
+            @Override
+            public void onNext(UpdateOrdersAck value) {
+                acks.add(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onCompleted() {
+                completed.countDown();
+            }
+        });
+        int total = OrderUpdateStream.DEFAULT_BATCH_SIZE * 2 + 50;
+        for (int i = 0; i < total; i++) {
+            requests.onNext(Order.newBuilder().setId("u" + i).setDestination("Seattle, WA").build());
+        }
+        requests.onCompleted();
+
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        UpdateOrdersAck last = acks.get(acks.size() - 1);
+        assertEquals(total, last.getApplied());
+        assertEquals("u" + (total - 1), last.getLastId());
+        // 中间的ack是每个批次的累计值
+        assertEquals(OrderUpdateStream.DEFAULT_BATCH_SIZE, acks.get(0).getApplied());
+        assertEquals(total, newArrayList(blockingStub.listOrdersByDestination(value("Seattle, WA"))).size());
+    }
+
+    @Test
+    public void updateOrdersStream_requestsOrdersOnlyAfterBatchesAreDurable() throws Exception {
+        OrderStore store = new ConcurrentOrderStore();
+        BlockingQueue<CompletableFuture<Void>> syncs = new LinkedBlockingQueue<>();
+        int batchSize = 10;
+        String serverName = InProcessServerBuilder.generateName();
+        grpcCleanup.register(InProcessServerBuilder.forName(serverName).directExecutor()
+                .addService(new OrderManagementGrpc.OrderManagementImplBase() {
+                    @Override
+                    public StreamObserver<Order> updateOrdersStream(StreamObserver<UpdateOrdersAck> responseObserver) {
+                        return new OrderUpdateStream(store, () -> {
+                            CompletableFuture<Void> sync = new CompletableFuture<>();
+                            syncs.add(sync);
+                            return sync;
+                        }, batchSize, responseObserver);
+                    }
+                }).build().start());
+        OrderManagementGrpc.OrderManagementStub stub = OrderManagementGrpc.newStub(
+                grpcCleanup.register(InProcessChannelBuilder.forName(serverName).directExecutor().build()));
+        List<UpdateOrdersAck> acks = new ArrayList<>();
+        CountDownLatch completed = new CountDownLatch(1);
+        StreamObserver<Order> requests = stub.updateOrdersStream(new StreamObserver<UpdateOrdersAck>() {
+            @Override
+            public void onNext(UpdateOrdersAck value) {
+                acks.add(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onCompleted() {
+                completed.countDown();
+            }
+        });
+        for (int i = 0; i < batchSize * 5; i++) {
+            requests.onNext(Order.newBuilder().setId("u" + i).build());
+        }
+        requests.onCompleted();
+
+        // 两个批次在等待持久化, 服务端不再接收更多订单
+        assertEquals(batchSize * 2, store.size());
+        assertEquals(2, syncs.size());
+        // 每个批次持久化之后才接收下一个批次
+        syncs.poll().complete(null);
+        assertEquals(batchSize, acks.get(0).getApplied());
+        assertEquals(batchSize * 3, store.size());
+        while (completed.getCount() > 0) {
+            syncs.poll(5, TimeUnit.SECONDS).complete(null);
+        }
+        assertEquals(batchSize * 5, store.size());
+        assertEquals(batchSize * 5, acks.get(acks.size() - 1).getApplied());
+    }
+
+    @Test
+    public void partitionedCombiner_matchesSerialOrder() throws Exception {
+        OrderStore store = new ConcurrentOrderStore();
+        for (int i = 0; i < 1000; i++) {
+            store.put(Order.newBuilder().setId(String.valueOf(i)).setDestination("city-" + (i * 7 % 13)).build());
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        ShipmentCombiner serial = new SerialShipmentCombiner(store::get);
+        ShipmentCombiner partitioned = new PartitionedShipmentCombiner(4, workers, store::get);
+        AtomicLong serialBytes = new AtomicLong();
+        AtomicLong partitionedBytes = new AtomicLong();
+        for (int i = 0; i < 1000; i++) {
+            serial.add(String.valueOf(i), serialBytes::addAndGet);
+            partitioned.add(String.valueOf(i), partitionedBytes::addAndGet);
+        }
+        // 不存在的订单被跳过
+        partitioned.add("missing", partitionedBytes::addAndGet);
+        List<CombinedShipment.Builder> expected = serial.drain().get();
+        List<CombinedShipment.Builder> actual = partitioned.drain().get(5, TimeUnit.SECONDS);
+        workers.shutdown();
+
+        assertEquals(13, actual.size());
+        assertEquals(serialBytes.get(), partitionedBytes.get());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getOrderListList(), actual.get(i).getOrderListList());
+        }
+    }
+
+    private static long shipmentNumber(CombinedShipment shipment) {
+        String id = shipment.getId();
+        return Long.parseLong(id.substring("CMB-".length(), id.indexOf(':')));
+    }
+
+    @Test
+    public void processOrders_partitionedLanesEmitInOrder() throws Exception {
+        OrderStore store = new ConcurrentOrderStore();
+        for (int i = 0; i < 100; i++) {
+            store.put(Order.newBuilder().setId(String.valueOf(i)).setDestination("city-" + (i % 7)).build());
+        }
+        String serverName = InProcessServerBuilder.generateName();
+        grpcCleanup.register(InProcessServerBuilder.forName(serverName)
+                .addService(new OrderManagementImpl(store, new ShipmentBatchConfig(10, 1000, Long.MAX_VALUE, 4)))
+                .build().start());
+        OrderManagementGrpc.OrderManagementStub asyncStub = OrderManagementGrpc.newStub(
+                grpcCleanup.register(InProcessChannelBuilder.forName(serverName).build()));
+
+        List<CombinedShipment> shipments = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch completed = new CountDownLatch(1);
+        StreamObserver<StringValue> requests = asyncStub.processOrders(new StreamObserver<CombinedShipment>() {
+            @Override
+            public void onNext(CombinedShipment value) {
+                shipments.add(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onCompleted() {
+                completed.countDown();
+            }
+        });
+        for (int i = 0; i < 100; i++) {
+            requests.onNext(value(String.valueOf(i)));
+        }
+        requests.onCompleted();
+
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        // 10个批次, 每批10个订单分到7个目的地
+        assertEquals(70, shipments.size());
+        List<String> ids = new ArrayList<>();
+        for (CombinedShipment shipment : shipments) {
+            ids.addAll(ids(shipment.getOrderListList().iterator()));
+        }
+        // 批次之间的顺序保持不变
+        for (int batch = 0; batch < 10; batch++) {
+            List<String> expected = new ArrayList<>();
+            for (int i = batch * 10; i < batch * 10 + 10; i++) {
+                expected.add(String.valueOf(i));
+            }
+            assertEquals(sorted(expected), sorted(new ArrayList<>(ids.subList(batch * 10, batch * 10 + 10))));
+        }
+        // 单号按发送顺序分配, 与lane的执行顺序无关
+        for (int i = 1; i < shipments.size(); i++) {
+            assertTrue(shipmentNumber(shipments.get(i - 1)) < shipmentNumber(shipments.get(i)));
+        }
+    }
+
+    @Test
+    public void itemIndex_followsUpdates() {
+        OrderStore store = new ConcurrentOrderStore();
+        ItemIndex index = new ItemIndex();
+        store.addListener(index);
+        store.put(Order.newBuilder().setId("1").addItems("Amazon Echo").build());
+        store.put(Order.newBuilder().setId("2").addItems("Echo Dot").build());
+        assertEquals(Arrays.asList("1", "2"), newArrayList(index.candidates("Echo")));
+
+        store.put(Order.newBuilder().setId("1").addItems("Kindle").build());
+        assertEquals(Arrays.asList("2"), newArrayList(index.candidates("Echo")));
+        assertEquals(Arrays.asList("1"), newArrayList(index.candidates("Kindle")));
+        assertNull(index.candidates("Ec"));
+    }
+
+    @Test
+    public void updateOrderIfVersion_rejectsStaleVersion() {
+        Order order = blockingStub.getOrder(value("103"));
+        assertEquals(1, order.getVersion());
+
+        ConditionalUpdateResponse applied = blockingStub.updateOrderIfVersion(ConditionalUpdateRequest.newBuilder()
+                .setOrder(order.toBuilder().setPrice(450)).setExpectedVersion(1).build());
+        assertTrue(applied.getApplied());
+        assertEquals(2, applied.getOrder().getVersion());
+
+        // 基于旧版本的写入失败, 并返回当前的订单
+        ConditionalUpdateResponse conflict = blockingStub.updateOrderIfVersion(ConditionalUpdateRequest.newBuilder()
+                .setOrder(order.toBuilder().setPrice(500)).setExpectedVersion(1).build());
+        assertFalse(conflict.getApplied());
+        assertEquals(applied.getOrder(), conflict.getOrder());
+
+        // expected_version为0只能新增
+        Order created = Order.newBuilder().setId("401").build();
+        assertTrue(blockingStub.updateOrderIfVersion(ConditionalUpdateRequest.newBuilder()
+                .setOrder(created).build()).getApplied());
+        assertFalse(blockingStub.updateOrderIfVersion(ConditionalUpdateRequest.newBuilder()
+                .setOrder(created).build()).getApplied());
+    }
+
+    @Test
+    public void clientSuppliedVersionIsIgnored() {
+        // 客户端不能跳过或者伪造版本号
+        Order forged = Order.newBuilder().setId("402").setVersion(Long.MAX_VALUE).build();
+        blockingStub.addOrder(forged);
+        assertEquals(1, blockingStub.getOrder(value("402")).getVersion());
+        blockingStub.addOrder(forged);
+        assertEquals(2, blockingStub.getOrder(value("402")).getVersion());
+
+        ConditionalUpdateResponse response = blockingStub.updateOrderIfVersion(ConditionalUpdateRequest.newBuilder()
+                .setOrder(forged).setExpectedVersion(2).build());
+        assertEquals(3, response.getOrder().getVersion());
+    }
+
+    @Test
+    public void compareAndSet_retriesOnConflict() throws Exception {
+        for (OrderStore store : Arrays.asList(new ConcurrentOrderStore(), new OffHeapOrderStore(64 * 1024))) {
+            store.put(Order.newBuilder().setId("counter").build());
+            int threads = 8;
+            int perThread = 100;
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            CountDownLatch done = new CountDownLatch(threads);
+            for (int t = 0; t < threads; t++) {
+                executor.execute(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        // 读-改-写, 冲突时基于最新版本重试
+                        Order current;
+                        do {
+                            current = store.get("counter");
+                        } while (store.compareAndSet(current.toBuilder().setPrice(current.getPrice() + 1).build(),
+                                current.getVersion()) == null);
+                    }
+                    done.countDown();
+                });
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            executor.shutdown();
+            Order counter = store.get("counter");
+            assertEquals(threads * perThread, (int) counter.getPrice());
+            assertEquals(threads * perThread + 1, counter.getVersion());
+        }
+    }
+
+    @Test
+    public void concurrentStore_keepsEveryWrite() throws Exception {
+        for (OrderStore store : Arrays.asList(new ConcurrentOrderStore(), new OffHeapOrderStore(64 * 1024))) {
+            int threads = 8;
+            int perThread = 1000;
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            CountDownLatch done = new CountDownLatch(threads);
+            for (int t = 0; t < threads; t++) {
+                int base = t * perThread;
+                executor.execute(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        store.put(Order.newBuilder().setId(String.valueOf(base + i)).build());
+                        // 并发遍历不能抛出异常
+                        store.orders().iterator().next();
+                        store.ordersAfter(String.valueOf(base + i / 2)).iterator().hasNext();
+                    }
+                    done.countDown();
+                });
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            executor.shutdown();
+            assertEquals(threads * perThread, store.size());
+            assertEquals(threads * perThread, Iterables.size(store.orders()));
+        }
+    }
+
+    @Test
+    public void offHeapStore_serializesConcurrentWritesToSameOrder() throws Exception {
+        // 段数为1时所有id都在同一段, 锁外解析期间的冲突最多
+        OrderStore store = new OffHeapOrderStore(64 * 1024, 1);
+        AtomicInteger gaps = new AtomicInteger();
+        store.addListener((previous, current) -> {
+            if (current.getVersion() != (previous == null ? 1 : previous.getVersion() + 1)) {
+                gaps.incrementAndGet();
+            }
+        });
+        int threads = 8;
+        int perThread = 500;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    store.put(Order.newBuilder().setId(String.valueOf(i % 4)).addItems("item-" + i).build());
+                }
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        executor.shutdown();
+        long versions = 0;
+        for (int i = 0; i < 4; i++) {
+            versions += store.get(String.valueOf(i)).getVersion();
+        }
+        assertEquals(threads * perThread, versions);
+        assertEquals(0, gaps.get());
+    }
+
+    @Test
+    public void offHeapStore_compactsOverwrittenRecords() throws Exception {
+        OffHeapOrderStore store = new OffHeapOrderStore(64 * 1024, 1);
+        for (int i = 0; i < 100; i++) {
+            store.put(Order.newBuilder().setId(String.valueOf(i)).addItems("item-" + i).build());
+        }
+        ByteBuffer before = store.getSerialized("7");
+        Order original = Order.parseFrom(before.duplicate());
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < 100; i++) {
+                store.put(Order.newBuilder().setId(String.valueOf(i)).addItems("item-" + i + "-" + round).build());
+            }
+        }
+
+        assertTrue(store.compactions() > 0);
+        // 不压缩的话旧记录有几百KB, 压缩后垃圾不超过触发压缩的下限64KB
+        assertTrue(store.deadBytes() + " dead bytes", store.deadBytes() < 64 * 1024);
+        assertEquals(100, store.size());
+        assertEquals("item-7-199", store.get("7").getItems(0));
+        assertEquals(201, store.get("7").getVersion());
+        // 压缩前取出的切片仍然可以读
+        assertEquals(original, Order.parseFrom(before.duplicate()));
+    }
+
+    @Test
+    public void unindexedService_answersQueriesByScanning() throws Exception {
+        OrderStore store = new OffHeapOrderStore(64 * 1024);
+        OrderManagementImpl service = new OrderManagementImpl(store, ShipmentBatchConfig.fromSystemProperties(),
+                null, false);
+        String serverName = InProcessServerBuilder.generateName();
+        grpcCleanup.register(InProcessServerBuilder.forName(serverName).directExecutor()
+                .addService(service.bindSerializedService()).build().start());
+        OrderManagementGrpc.OrderManagementBlockingStub stub = OrderManagementGrpc.newBlockingStub(
+                grpcCleanup.register(InProcessChannelBuilder.forName(serverName).directExecutor().build()));
+        for (int i = 0; i < 10; i++) {
+            stub.addOrder(Order.newBuilder().setId(String.valueOf(i)).addItems(i % 2 == 0 ? "Kindle" : "Echo")
+                               .setDestination(i < 5 ? "Seattle, WA" : "San Jose, CA").setPrice(i * 100).build());
+        }
+
+        assertEquals(Arrays.asList("0", "2", "4", "6", "8"), ids(stub.searchOrders(value("Kindle"))));
+        assertEquals(Arrays.asList("5", "6", "7", "8", "9"), ids(stub.listOrdersByDestination(value("San Jose, CA"))));
+        assertEquals(Arrays.asList("6", "8"), ids(stub.queryOrders(OrderQuery.newBuilder()
+                .setDestination("San Jose, CA").setItemContains("Kindle").setMinPrice(FloatValue.of(600)).build())));
+        SearchOrdersResponse page = stub.searchOrdersPaged(SearchOrdersRequest.newBuilder()
+                .setQuery("Echo").setPageSize(3).build());
+        assertEquals(Arrays.asList("1", "3", "5"), ids(page.getOrdersList().iterator()));
+        page = stub.searchOrdersPaged(SearchOrdersRequest.newBuilder()
+                .setQuery("Echo").setPageSize(3).setPageToken(page.getNextPageToken()).build());
+        assertEquals(Arrays.asList("7", "9"), ids(page.getOrdersList().iterator()));
+    }
+}
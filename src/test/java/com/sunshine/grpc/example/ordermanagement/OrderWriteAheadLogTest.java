@@ -0,0 +1,184 @@
+package com.sunshine.grpc.example.ordermanagement;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link OrderWriteAheadLog}.
+ *
+ * @author: hj
+ * @date: 26-10-18 上午11:20
+ */
+@RunWith(JUnit4.class)
+public class OrderWriteAheadLogTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static Order order(String id, String item) {
+        return Order.newBuilder().setId(id).addItems(item).setDestination("San Jose, CA").build();
+    }
+
+    private static Order order(String id, String item, long version) {
+        return order(id, item).toBuilder().setVersion(version).build();
+    }
+
+    @Test
+    public void recoversWrittenOrders() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        OrderStore store = new ConcurrentOrderStore();
+        OrderWriteAheadLog log = OrderWriteAheadLog.open(dir, store);
+        for (int i = 0; i < 1000; i++) {
+            store.put(order(String.valueOf(i), "item-" + i));
+        }
+        store.put(order("7", "updated"));
+        log.sync().get(10, TimeUnit.SECONDS);
+        log.close();
+
+        OrderStore recovered = new ConcurrentOrderStore();
+        OrderWriteAheadLog.open(dir, recovered).close();
+        assertEquals(1000, recovered.size());
+        // 版本号也被恢复
+        assertEquals(order("7", "updated", 2), recovered.get("7"));
+        assertEquals(order("999", "item-999", 1), recovered.get("999"));
+    }
+
+    @Test
+    public void recoversFromSnapshotAfterCompaction() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        OrderStore store = new ConcurrentOrderStore();
+        OrderWriteAheadLog log = OrderWriteAheadLog.open(dir, store);
+        store.put(order("1", "before"));
+        store.put(order("2", "before"));
+        log.compact();
+        store.put(order("2", "after"));
+        store.put(order("3", "after"));
+        log.sync().get(10, TimeUnit.SECONDS);
+        log.close();
+
+        OrderStore recovered = new ConcurrentOrderStore();
+        OrderWriteAheadLog.open(dir, recovered).close();
+        assertEquals(3, recovered.size());
+        assertEquals(order("1", "before", 1), recovered.get("1"));
+        assertEquals(order("2", "after", 2), recovered.get("2"));
+        assertEquals(order("3", "after", 1), recovered.get("3"));
+    }
+
+    @Test
+    public void recoveryKeepsVersionsOfWritesRacingWithCompaction() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        OrderStore store = new ConcurrentOrderStore();
+        OrderWriteAheadLog log = OrderWriteAheadLog.open(dir, store);
+        for (int i = 0; i < 100; i++) {
+            store.put(order(String.valueOf(i), "v"));
+        }
+        // 压缩期间持续写入, 切换日志之后、快照之前的写入同时出现在快照和新日志中
+        AtomicBoolean stop = new AtomicBoolean();
+        CountDownLatch stopped = new CountDownLatch(1);
+        Thread writer = new Thread(() -> {
+            for (int n = 0; !stop.get(); n++) {
+                store.put(order(String.valueOf(n % 100), "v" + n));
+            }
+            stopped.countDown();
+        });
+        writer.start();
+        for (int i = 0; i < 5; i++) {
+            log.compact();
+        }
+        stop.set(true);
+        assertTrue(stopped.await(10, TimeUnit.SECONDS));
+        log.sync().get(10, TimeUnit.SECONDS);
+        log.close();
+
+        OrderStore recovered = new ConcurrentOrderStore();
+        OrderWriteAheadLog.open(dir, recovered).close();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(store.get(String.valueOf(i)), recovered.get(String.valueOf(i)));
+        }
+    }
+
+    @Test
+    public void compactsLogsLeftByEarlierRestarts() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        // 每次启动写入的日志都远低于阈值, 但重启留下的日志累计起来超过阈值
+        long threshold = 4096;
+        OrderStore store = null;
+        for (int restart = 0; restart < 10; restart++) {
+            store = new ConcurrentOrderStore();
+            OrderWriteAheadLog log = OrderWriteAheadLog.open(dir, store, threshold, 3600);
+            for (int i = 0; i < 20; i++) {
+                store.put(order(restart + "-" + i, "item-" + i));
+            }
+            log.sync().get(10, TimeUnit.SECONDS);
+            log.compactIfNeeded();
+            log.close();
+        }
+        assertEquals(1, Files.list(dir).filter(p -> p.toString().endsWith(".snapshot")).count());
+        // 快照之前的日志都被删除, 只剩下快照之后的几代
+        assertTrue(Files.list(dir).filter(p -> p.toString().endsWith(".wal")).count() < 10);
+        // 关闭时日志文件被截断到写入的长度, 不会留下整个映射区域
+        for (Path wal : (Iterable<Path>) Files.list(dir).filter(p -> p.toString().endsWith(".wal"))::iterator) {
+            assertTrue(wal + " is " + Files.size(wal) + " bytes", Files.size(wal) < threshold);
+        }
+
+        OrderStore recovered = new ConcurrentOrderStore();
+        OrderWriteAheadLog.open(dir, recovered).close();
+        assertEquals(200, recovered.size());
+        for (Order order : store.orders()) {
+            assertEquals(order, recovered.get(order.getId()));
+        }
+    }
+
+    @Test
+    public void rotatesBeforeReachingTheLogFileLimit() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        OrderStore store = new ConcurrentOrderStore();
+        OrderWriteAheadLog log = OrderWriteAheadLog.open(dir, store, Long.MAX_VALUE, 3600, 4096);
+        for (int i = 0; i < 1000; i++) {
+            store.put(order(String.valueOf(i), "item-" + i));
+        }
+        log.sync().get(10, TimeUnit.SECONDS);
+        log.close();
+        assertTrue(Files.list(dir).filter(p -> p.toString().endsWith(".wal")).count() > 1);
+
+        OrderStore recovered = new ConcurrentOrderStore();
+        OrderWriteAheadLog.open(dir, recovered).close();
+        assertEquals(1000, recovered.size());
+        assertEquals(order("999", "item-999", 1), recovered.get("999"));
+    }
+
+    @Test
+    public void failedWriteFailsSyncAndLaterWritesSucceed() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        OrderStore store = new ConcurrentOrderStore();
+        OrderWriteAheadLog log = OrderWriteAheadLog.open(dir, store, Long.MAX_VALUE, 3600, 4096);
+        store.put(order("1", "small"));
+        // 超过单个日志文件上限的记录写不进去, sync以失败结束而不是一直等待
+        store.put(order("2", new String(new char[8192]).replace('\0', 'x')));
+        try {
+            log.sync().get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException expected) {
+        }
+        store.put(order("3", "after failure"));
+        log.sync().get(10, TimeUnit.SECONDS);
+        log.close();
+
+        OrderStore recovered = new ConcurrentOrderStore();
+        OrderWriteAheadLog.open(dir, recovered).close();
+        assertEquals(order("1", "small", 1), recovered.get("1"));
+        assertNull(recovered.get("2"));
+        assertEquals(order("3", "after failure", 1), recovered.get("3"));
+    }
+}
@@ -0,0 +1,205 @@
+package com.sunshine.grpc.example.productinfo;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link ProductInfoImpl}.
+ *
+ * @author: hj
+ * @date: 26-10-18 下午4:50
+ */
+@RunWith(JUnit4.class)
+public class ProductInfoImplTest {
+    @Rule
+    public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+    private ProductInfoGrpc.ProductInfoBlockingStub blockingStub;
+
+    @Before
+    public void setUp() throws Exception {
+        String serverName = InProcessServerBuilder.generateName();
+        grpcCleanup.register(InProcessServerBuilder.forName(serverName).directExecutor()
+                .addService(new ProductInfoImpl().bindSerializedService()).build().start());
+        blockingStub = ProductInfoGrpc.newBlockingStub(
+                grpcCleanup.register(InProcessChannelBuilder.forName(serverName).directExecutor().build()));
+    }
+
+    private static ProductId productId(String value) {
+        return ProductId.newBuilder().setValue(value).build();
+    }
+
+    @Test
+    public void addProduct_thenGetProduct() {
+        Product product = Product.newBuilder().setId("p1").setName("Apple iPhone 11").setPrice(699.0f).build();
+        assertEquals(productId("p1"), blockingStub.addProduct(product));
+
+        assertEquals(product, blockingStub.getProduct(productId("p1")));
+        // 第二次读取发送的是缓存的字节
+        assertEquals(product, blockingStub.getProduct(productId("p1")));
+
+        Product updated = product.toBuilder().setPrice(599.0f).build();
+        blockingStub.addProduct(updated);
+        assertEquals(updated, blockingStub.getProduct(productId("p1")));
+    }
+
+    @Test
+    public void getProduct_missingIsNotFound() {
+        try {
+            blockingStub.getProduct(productId("missing"));
+            fail();
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.Code.NOT_FOUND, e.getStatus().getCode());
+        }
+    }
+
+    @Test
+    public void getProduct_reusesStacklessNotFound() throws Exception {
+        ProductInfoImpl service = new ProductInfoImpl();
+        List<Throwable> errors = new ArrayList<>();
+        Thread caller = Thread.currentThread();
+        for (int i = 0; i < 2; i++) {
+            service.getProduct(productId("missing"), new NoopObserver<Product>() {
+                @Override
+                public void onError(Throwable t) {
+                    assertSame(caller, Thread.currentThread());
+                    errors.add(t);
+                }
+            });
+        }
+        // 没有后端存储时未命中在调用线程上同步回复, 也不会插入缓存
+        assertEquals(2, errors.size());
+        assertSame(errors.get(0), errors.get(1));
+        assertEquals(Status.Code.NOT_FOUND, Status.fromThrowable(errors.get(0)).getCode());
+        assertEquals(0, errors.get(0).getStackTrace().length);
+        assertEquals(0, service.cacheSize());
+        assertEquals(2, service.cacheStats().missCount());
+    }
+
+    @Test
+    public void addProducts_acksEachBatch() throws Exception {
+        ProductInfoGrpc.ProductInfoStub asyncStub = ProductInfoGrpc.newStub(blockingStub.getChannel());
+        List<AddProductsAck> acks = new ArrayList<>();
+        CountDownLatch completed = new CountDownLatch(1);
+        StreamObserver<Product> requests = asyncStub.addProducts(new NoopObserver<AddProductsAck>() {
+            @Override
+            public void onNext(AddProductsAck value) {
+                acks.add(value);
+            }
+
+            @Override
+            public void onCompleted() {
+                completed.countDown();
+            }
+        });
+        int total = ProductIngestStream.DEFAULT_BATCH_SIZE * 2 + 250;
+        for (int i = 0; i < total; i++) {
+            requests.onNext(Product.newBuilder().setId("bulk-" + i).setName("product " + i).build());
+        }
+        requests.onCompleted();
+
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        assertEquals(3, acks.size());
+        assertEquals(ProductIngestStream.DEFAULT_BATCH_SIZE, acks.get(0).getAccepted());
+        assertEquals(250, acks.get(2).getBatchSize());
+        assertEquals(total, acks.get(2).getAccepted());
+        assertEquals("bulk-" + (total - 1), acks.get(2).getLastId());
+        assertEquals("product 42", blockingStub.getProduct(productId("bulk-42")).getName());
+    }
+
+    @Test
+    public void cache_isBoundedAndCountsEvictions() {
+        ProductInfoImpl service = new ProductInfoImpl(new ProductCacheConfig(10, 0, 0), ProductLoader.NONE);
+        for (int i = 0; i < 100; i++) {
+            service.addProduct(Product.newBuilder().setId("p" + i).build(), new NoopObserver<>());
+        }
+        service.cleanUp();
+
+        assertTrue(service.cacheSize() <= 10);
+        assertEquals(90, service.cacheStats().evictionCount());
+    }
+
+    @Test
+    public void cache_loadsMissesFromLoader() throws Exception {
+        ProductInfoImpl service = new ProductInfoImpl(ProductCacheConfig.fromSystemProperties(),
+                id -> id.startsWith("db-") ? Product.newBuilder().setId(id).setName("from db").build() : null);
+        String serverName = InProcessServerBuilder.generateName();
+        grpcCleanup.register(InProcessServerBuilder.forName(serverName).directExecutor()
+                .addService(service.bindSerializedService()).build().start());
+        ProductInfoGrpc.ProductInfoBlockingStub stub = ProductInfoGrpc.newBlockingStub(
+                grpcCleanup.register(InProcessChannelBuilder.forName(serverName).directExecutor().build()));
+
+        assertEquals("from db", stub.getProduct(productId("db-1")).getName());
+        assertEquals("from db", stub.getProduct(productId("db-1")).getName());
+        assertEquals(1, service.cacheStats().loadSuccessCount());
+        assertEquals(1, service.cacheStats().hitCount());
+        try {
+            stub.getProduct(productId("missing"));
+            fail();
+        } catch (StatusRuntimeException e) {
+            assertEquals(Status.Code.NOT_FOUND, e.getStatus().getCode());
+        }
+    }
+
+    @Test
+    public void concurrentMisses_shareOneLoad() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ProductInfoImpl service = new ProductInfoImpl(ProductCacheConfig.fromSystemProperties(), id -> {
+            loads.incrementAndGet();
+            release.await();
+            return Product.newBuilder().setId(id).setName("slow").build();
+        });
+        int callers = 20;
+        BlockingQueue<Product> replies = new LinkedBlockingQueue<>();
+        for (int i = 0; i < callers; i++) {
+            // 加载没有完成, getProduct也会立即返回, 不占用调用线程
+            service.getProduct(productId("hot"), new NoopObserver<Product>() {
+                @Override
+                public void onNext(Product value) {
+                    replies.add(value);
+                }
+            });
+        }
+        assertTrue(replies.isEmpty());
+
+        release.countDown();
+        for (int i = 0; i < callers; i++) {
+            assertEquals("slow", replies.poll(5, TimeUnit.SECONDS).getName());
+        }
+        assertEquals(1, loads.get());
+    }
+
+    private static class NoopObserver<T> implements StreamObserver<T> {
+        @Override
+        public void onNext(T value) {
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    }
+}